@@ -1,5 +1,7 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -8,9 +10,32 @@ public interface MessageEncoderDecoder<T> {
      * @param nextByte the next byte to consider for the currently decoded
      * message
      * @return a message if this byte completes one or null if it doesnt.
+     * @throws MessageTooLargeException if the message grew longer than the
+     * decoder accepts; the rest of it is skipped.
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * decode bytes from the given buffer until a message is completed or the
+     * buffer is drained. implementations may override this to consume runs of
+     * bytes in bulk instead of one at a time.
+     *
+     * @param buffer the bytes to decode, its position is advanced past every
+     * consumed byte
+     * @return a message if one was completed or null if the buffer was drained.
+     * @throws MessageTooLargeException as decodeNextByte does; the buffer's
+     * position is past the byte that made the message too large.
+     */
+    default T decodeNext(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            T message = decodeNextByte(buffer.get());
+            if (message != null) {
+                return message;
+            }
+        }
+        return null;
+    }
+
     /**
      * encodes the given message to bytes array
      *
@@ -19,4 +44,49 @@ public interface MessageEncoderDecoder<T> {
      */
     byte[] encode(T message);
 
+    /**
+     * encodes the given message directly into the given buffer, starting at
+     * its position. implementations should override this to avoid the
+     * intermediate array that encode creates.
+     *
+     * @param message the message to encode
+     * @param buffer the buffer to write into
+     * @return true if the message was written, false if it does not fit in
+     * the remaining space, in which case the buffer's position is unchanged.
+     */
+    default boolean encodeInto(T message, ByteBuffer buffer) {
+        byte[] bytes = encode(message);
+        if (bytes.length > buffer.remaining()) {
+            return false;
+        }
+        buffer.put(bytes);
+        return true;
+    }
+
+    /**
+     * tells whether the given message is a control message, which connection
+     * handlers send ahead of queued bulk traffic. messages of the same kind
+     * keep their relative order.
+     *
+     * @param message the message about to be queued for sending
+     * @return true if the message should overtake queued non priority messages
+     */
+    default boolean isPriority(T message) {
+        return false;
+    }
+
+    /**
+     * tells whether the given message may replace an earlier queued message.
+     * connection handlers keep at most one unsent message per key: a newer
+     * message with the same key takes the place of the queued one, keeping
+     * its position in the queue.
+     *
+     * @param message the message about to be queued for sending
+     * @return the key to conflate the message by, or null if it must be sent
+     * as is
+     */
+    default Object conflationKey(T message) {
+        return null;
+    }
+
 }
@@ -0,0 +1,24 @@
+package bgu.spl.net.api;
+
+/**
+ * Thrown by a MessageEncoderDecoder for a message longer than it accepts. The decoder skips the
+ * rest of that message, so decoding may go on with the next one.
+ */
+public class MessageTooLargeException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int maxSize;
+
+    public MessageTooLargeException(int maxSize) {
+        super("Messages may not exceed " + maxSize + " bytes");
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the largest message, in bytes, the decoder accepts
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+}
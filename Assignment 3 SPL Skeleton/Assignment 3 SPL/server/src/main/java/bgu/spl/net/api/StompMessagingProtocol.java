@@ -14,4 +14,19 @@ public interface StompMessagingProtocol<T>  {
      * @return true if the connection should be terminated
      */
     boolean shouldTerminate();
+
+    /**
+     * Called once the connection is closed, by either side, e.g. to release what a client that
+     * left without DISCONNECT still holds.
+     */
+    default void connectionClosed() {
+    }
+
+    /**
+     * Called in place of process for a message the decoder rejected as too large. The decoder
+     * skips it and goes on with the next message. By default the message is just dropped; a
+     * protocol that should answer or disconnect overrides this.
+     */
+    default void messageTooLarge(MessageTooLargeException ex) {
+    }
 }
@@ -0,0 +1,106 @@
+package bgu.spl.net.impl.data;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stops calling the SQL server once it keeps failing. After failureThreshold failures in a row the
+ * breaker opens and requests fail at once; openMillis later a single probe request is let through
+ * (half open), and its outcome closes or reopens the breaker.
+ *
+ * It also keeps the latency of the requests made in each state, so the cost of waiting for a sick
+ * server (CLOSED, HALF_OPEN) can be compared with the cost of failing fast (OPEN).
+ */
+public class CircuitBreaker {
+
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private final int failureThreshold;
+	private final long openMillis;
+
+	private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private volatile long openedAt = 0;
+
+	private final AtomicLong timesOpened = new AtomicLong();
+	// per state: requests, total nanos and max nanos
+	private final AtomicLongArray requests = new AtomicLongArray(State.values().length);
+	private final AtomicLongArray totalNanos = new AtomicLongArray(State.values().length);
+	private final AtomicLongArray maxNanos = new AtomicLongArray(State.values().length);
+
+	public CircuitBreaker(int failureThreshold, long openMillis) {
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * @return the state the request should be made in: CLOSED or HALF_OPEN to call the server,
+	 * OPEN to fail fast without calling it
+	 */
+	public State acquire() {
+		State s = state.get();
+		if (s == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis
+				&& state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+			return State.HALF_OPEN; // this caller is the probe; everyone else still sees HALF_OPEN and fails fast
+		}
+		return s == State.CLOSED ? State.CLOSED : State.OPEN;
+	}
+
+	public void onSuccess(State acquired) {
+		consecutiveFailures.set(0);
+		if (acquired == State.HALF_OPEN)
+			state.set(State.CLOSED);
+	}
+
+	public void onFailure(State acquired) {
+		if (acquired == State.HALF_OPEN) {
+			open();
+		} else if (consecutiveFailures.incrementAndGet() >= failureThreshold
+				&& state.compareAndSet(State.CLOSED, State.OPEN)) {
+			openedAt = System.currentTimeMillis();
+			timesOpened.incrementAndGet();
+		}
+	}
+
+	private void open() {
+		openedAt = System.currentTimeMillis();
+		state.set(State.OPEN);
+		timesOpened.incrementAndGet();
+	}
+
+	/**
+	 * Adds the latency of one request made in the given state
+	 */
+	public void record(State acquired, long nanos) {
+		int i = acquired.ordinal();
+		requests.incrementAndGet(i);
+		totalNanos.addAndGet(i, nanos);
+		long max;
+		do {
+			max = maxNanos.get(i);
+		} while (nanos > max && !maxNanos.compareAndSet(i, max, nanos));
+	}
+
+	public State getState() {
+		return state.get();
+	}
+
+	public long getTimesOpened() {
+		return timesOpened.get();
+	}
+
+	public long getRequests(State s) {
+		return requests.get(s.ordinal());
+	}
+
+	public long getAverageLatencyMicros(State s) {
+		long n = requests.get(s.ordinal());
+		return n == 0 ? 0 : totalNanos.get(s.ordinal()) / n / 1000;
+	}
+
+	public long getMaxLatencyMicros(State s) {
+		return maxNanos.get(s.ordinal()) / 1000;
+	}
+}
@@ -3,14 +3,30 @@ package bgu.spl.net.impl.data;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class Database {
+	// a hung SQL server must not hang its callers: bounded waits, then the breaker fails fast
+	private static final int CONNECT_TIMEOUT_MS = Integer.getInteger("stomp.db.connectTimeoutMs", 1000);
+	private static final int READ_TIMEOUT_MS = Integer.getInteger("stomp.db.readTimeoutMs", 5000);
+	// audit writes waiting for SQL; callers wait when it is full rather than losing writes
+	private static final int AUDIT_QUEUE_SIZE = Integer.getInteger("stomp.db.auditQueue", 10000);
+	private static final long AUDIT_DRAIN_MS = Long.getLong("stomp.db.auditDrainMs", 5000);
+
 	private final ConcurrentHashMap<String, User> userMap;
 	private final ConcurrentHashMap<Integer, User> connectionsIdMap;
 	private final String sqlHost;
 	private final int sqlPort;
+	// audit inserts run here, one at a time in submission order, so logins never wait for SQL
+	private final ThreadPoolExecutor auditWriter;
+	private final CircuitBreaker breaker;
 
 	private Database() {
 		userMap = new ConcurrentHashMap<>();
@@ -18,6 +34,17 @@ public class Database {
 		// SQL server connection details
 		this.sqlHost = "127.0.0.1";
 		this.sqlPort = 7778;
+		this.auditWriter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<>(AUDIT_QUEUE_SIZE), r -> {
+				Thread t = new Thread(r, "sql-audit");
+				t.setDaemon(true);
+				return t;
+			}, Database::waitForRoom);
+		// the writer is a daemon, so queued audits would die with the JVM without this
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close, "sql-audit-drain"));
+		this.breaker = new CircuitBreaker(
+			Integer.getInteger("stomp.db.breaker.failures", 5),
+			Long.getLong("stomp.db.breaker.openMs", 5000));
 	}
 
 	public static Database getInstance() {
@@ -30,9 +57,18 @@ public class Database {
 	 * @return Result string from SQL server
 	 */
 	private String executeSQL(String sql) {
-		try (Socket socket = new Socket(sqlHost, sqlPort);
-			 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-			 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+		CircuitBreaker.State state = breaker.acquire();
+		if (state == CircuitBreaker.State.OPEN) {
+			breaker.record(state, 0);
+			return "ERROR:SQL server unavailable";
+		}
+
+		long start = System.nanoTime();
+		try (Socket socket = new Socket()) {
+			socket.connect(new InetSocketAddress(sqlHost, sqlPort), CONNECT_TIMEOUT_MS);
+			socket.setSoTimeout(READ_TIMEOUT_MS);
+			PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 			
 			// Send SQL with null terminator
 			out.print(sql + '\0');
@@ -45,11 +81,73 @@ public class Database {
 				response.append((char) ch);
 			}
 			
+			breaker.onSuccess(state);
 			return response.toString();
 			
 		} catch (Exception e) {
+			breaker.onFailure(state);
 			System.err.println("SQL Error: " + e.getMessage());
 			return "ERROR:" + e.getMessage();
+		} finally {
+			breaker.record(state, System.nanoTime() - start);
+		}
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	/**
+	 * Queue an audit write; it runs after every write queued before it
+	 */
+	private void executeSQLAsync(String sql) {
+		try {
+			auditWriter.execute(() -> executeSQL(sql));
+		} catch (RejectedExecutionException e) {
+			System.err.println("SQL audit dropped: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * A full audit queue makes the caller wait for room, so writes are neither lost nor reordered
+	 */
+	private static void waitForRoom(Runnable task, ThreadPoolExecutor executor) {
+		if (executor.isShutdown())
+			throw new RejectedExecutionException("audit writer is closed");
+		try {
+			executor.getQueue().put(task);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("interrupted while waiting for the audit queue");
+		}
+	}
+
+	/**
+	 * Stop taking audit writes and wait up to stomp.db.auditDrainMs for the queued ones to reach SQL
+	 */
+	public void close() {
+		auditWriter.shutdown();
+		try {
+			if (!auditWriter.awaitTermination(AUDIT_DRAIN_MS, TimeUnit.MILLISECONDS))
+				System.err.println("SQL audit: " + auditWriter.getQueue().size() + " writes not flushed on close");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Run a query once every audit write queued so far is done, so it sees them
+	 */
+	private String queryAfterWrites(String sql) {
+		try {
+			return auditWriter.submit(() -> executeSQL(sql)).get();
+		} catch (RejectedExecutionException e) {
+			return "ERROR:" + e.getMessage();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return "ERROR:interrupted";
+		} catch (ExecutionException e) {
+			return "ERROR:" + e.getCause().getMessage();
 		}
 	}
 
@@ -76,7 +174,7 @@ public class Database {
 				"INSERT INTO users (username, password, registration_date) VALUES ('%s', '%s', datetime('now'))",
 				escapeSql(username), escapeSql(password)
 			);
-			executeSQL(sql);
+			executeSQLAsync(sql);
 			
 			// Log login
 			logLogin(username);
@@ -96,42 +194,41 @@ public class Database {
 			"INSERT INTO login_history (username, login_time) VALUES ('%s', datetime('now'))",
 			escapeSql(username)
 		);
-		executeSQL(sql);
+		executeSQLAsync(sql);
 	}
 
 	private LoginStatus userExistsCase(int connectionId, String username, String password) {
 		User user = userMap.get(username);
-		synchronized (user) {
-			if (user.isLoggedIn()) {
-				return LoginStatus.ALREADY_LOGGED_IN;
-			} else if (!user.password.equals(password)) {
-				return LoginStatus.WRONG_PASSWORD;
-			} else {
-				user.login();
-				user.setConnectionId(connectionId);
-				connectionsIdMap.put(connectionId, user);
-				return LoginStatus.LOGGED_IN_SUCCESSFULLY;
-			}
+		if (user.isLoggedIn()) {
+			return LoginStatus.ALREADY_LOGGED_IN;
+		} else if (!user.password.equals(password)) {
+			return LoginStatus.WRONG_PASSWORD;
+		} else if (!user.tryLogin(connectionId)) {
+			return LoginStatus.ALREADY_LOGGED_IN; // another connection won the race
+		} else {
+			connectionsIdMap.put(connectionId, user);
+			return LoginStatus.LOGGED_IN_SUCCESSFULLY;
 		}
 	}
 
 	private boolean addNewUserCase(int connectionId, String username, String password) {
-		if (!userMap.containsKey(username)) {
-			synchronized (userMap) {
-				if (!userMap.containsKey(username)) {
-					User user = new User(connectionId, username, password);
-					user.login();
-					addUser(user);
-					return true;
-				}
-			}
+		if (userMap.containsKey(username)) {
+			return false;
 		}
-		return false;
+		// putIfAbsent only locks the map bin of this name, so distinct users register in parallel
+		User user = new User(connectionId, username, password);
+		user.login();
+		if (userMap.putIfAbsent(username, user) != null) {
+			return false;
+		}
+		connectionsIdMap.putIfAbsent(connectionId, user);
+		return true;
 	}
 
 	public void logout(int connectionsId) {
-		User user = connectionsIdMap.get(connectionsId);
-		if (user != null) {
+		// removing first makes sure only one of several concurrent logouts gets the user
+		User user = connectionsIdMap.remove(connectionsId);
+		if (user != null && user.logout(connectionsId)) {
 			// Log logout in SQL
 			String sql = String.format(
 				"UPDATE login_history SET logout_time=datetime('now') " +
@@ -139,10 +236,7 @@ public class Database {
 				"ORDER BY login_time DESC LIMIT 1",
 				escapeSql(user.name)
 			);
-			executeSQL(sql);
-			
-			user.logout();
-			connectionsIdMap.remove(connectionsId);
+			executeSQLAsync(sql);
 		}
 	}
 
@@ -158,7 +252,7 @@ public class Database {
 			"VALUES ('%s', '%s', datetime('now'), '%s')",
 			escapeSql(username), escapeSql(filename), escapeSql(gameChannel)
 		);
-		executeSQL(sql);
+		executeSQLAsync(sql);
 	}
 
 	/**
@@ -173,7 +267,7 @@ public class Database {
 		System.out.println("\n1. REGISTERED USERS:");
 		System.out.println(repeat("-", 80));
 		String usersSQL = "SELECT username, registration_date FROM users ORDER BY registration_date";
-		String usersResult = executeSQL(usersSQL);
+		String usersResult = queryAfterWrites(usersSQL);
 		if (usersResult.startsWith("SUCCESS")) {
 			String[] parts = usersResult.split("\\|");
 			if (parts.length > 1) {
@@ -189,7 +283,7 @@ public class Database {
 		System.out.println("\n2. LOGIN HISTORY:");
 		System.out.println(repeat("-", 80));
 		String loginSQL = "SELECT username, login_time, logout_time FROM login_history ORDER BY username, login_time DESC";
-		String loginResult = executeSQL(loginSQL);
+		String loginResult = queryAfterWrites(loginSQL);
 		if (loginResult.startsWith("SUCCESS")) {
 			String[] parts = loginResult.split("\\|");
 			if (parts.length > 1) {
@@ -214,7 +308,7 @@ public class Database {
 		System.out.println("\n3. FILE UPLOADS:");
 		System.out.println(repeat("-", 80));
 		String filesSQL = "SELECT username, filename, upload_time, game_channel FROM file_tracking ORDER BY username, upload_time DESC";
-		String filesResult = executeSQL(filesSQL);
+		String filesResult = queryAfterWrites(filesSQL);
 		if (filesResult.startsWith("SUCCESS")) {
 			String[] parts = filesResult.split("\\|");
 			if (parts.length > 1) {
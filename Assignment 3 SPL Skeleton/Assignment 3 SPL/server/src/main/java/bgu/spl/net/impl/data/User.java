@@ -1,35 +1,78 @@
 package bgu.spl.net.impl.data;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 public class User {
 	public final String name;
 	public final String password;
-	private int connectionId;
-	private boolean isLoggedIn = false;
+	// connection id in the high 32 bits, logged in flag in the lowest bit; changed only by CAS
+	private final AtomicLong state;
 
 	public User(int connectionId, String name, String password) {
-		this.connectionId = connectionId;
+		this.state = new AtomicLong(pack(connectionId, false));
 		this.name = name;
 		this.password = password;
 	}
 
 	public boolean isLoggedIn() {
-		return isLoggedIn;
+		return loggedIn(state.get());
 	}
 
 	public void login() {
-		isLoggedIn = true;
+		long s;
+		do {
+			s = state.get();
+		} while (!state.compareAndSet(s, s | 1));
+	}
+
+	/**
+	 * Logs the user in on the given connection, unless it is logged in already.
+	 * @return false if another connection got there first
+	 */
+	public boolean tryLogin(int connectionId) {
+		long s;
+		do {
+			s = state.get();
+			if (loggedIn(s))
+				return false;
+		} while (!state.compareAndSet(s, pack(connectionId, true)));
+		return true;
 	}
 
 	public void logout() {
-		isLoggedIn = false;
+		long s;
+		do {
+			s = state.get();
+		} while (!state.compareAndSet(s, s & ~1L));
+	}
+
+	/**
+	 * Logs the user out only if it is still logged in on the given connection, so a late logout
+	 * of an old connection cannot end a newer session.
+	 * @return true if the user was logged out
+	 */
+	public boolean logout(int connectionId) {
+		long expected = pack(connectionId, true);
+		return state.compareAndSet(expected, pack(connectionId, false));
 	}
 
 	public int getConnectionId() {
-		return connectionId;
+		return (int) (state.get() >>> 32);
 	}
 
 	public void setConnectionId(int connectionId) {
-		this.connectionId = connectionId;
+		long s;
+		do {
+			s = state.get();
+		} while (!state.compareAndSet(s, pack(connectionId, loggedIn(s))));
+	}
+
+	private static long pack(int connectionId, boolean loggedIn) {
+		return ((long) connectionId << 32) | (loggedIn ? 1 : 0);
+	}
+
+	private static boolean loggedIn(long state) {
+		return (state & 1) != 0;
 	}
 
 
@@ -0,0 +1,15 @@
+package bgu.spl.net.impl.rci;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes the fields of one message type by hand, see TypeRegistry.
+ */
+public interface FieldSerializer<T> {
+
+    void write(T value, DataOutput out) throws IOException;
+
+    T read(DataInput in) throws IOException;
+}
@@ -1,78 +1,264 @@
 package bgu.spl.net.impl.rci;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
+import bgu.spl.net.api.MessageTooLargeException;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+/**
+ * Frames objects as [4 byte length][2 byte type id][fields]. Types registered in the TypeRegistry
+ * are written by their FieldSerializer; anything else gets type id 0 and Java serialization.
+ *
+ * The encoder and decoder keep their buffers and streams between messages. An object larger than
+ * rci.maxObjectSize bytes (default 1M) is never allocated: the decoder throws a
+ * MessageTooLargeException and skips the object's bytes, so the stream stays in sync.
+ */
 public class ObjectEncoderDecoder implements MessageEncoderDecoder<Serializable> {
 
+    static final int MAX_OBJECT_SIZE = Integer.getInteger("rci.maxObjectSize", 1 << 20);
+    private static final int INITIAL_BUFFER_SIZE = 1 << 8;
+    private static final int RETAINED_BUFFER_SIZE = 1 << 16; // larger buffers are dropped after use
+
+    private final TypeRegistry registry;
+
     private final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
-    private byte[] objectBytes = null;
+    private byte[] objectBytes = new byte[INITIAL_BUFFER_SIZE];
+    private int objectLength = -1; // -1 while the length is being read
     private int objectBytesIndex = 0;
+    private int skipRemaining = 0; // bytes of an oversized object still to be discarded
+    private final ArrayInput input = new ArrayInput();
+    private final DataInputStream dataIn = new DataInputStream(input);
+
+    private final GrowableOutput encoded = new GrowableOutput();
+    private final ByteBufferOutput bufferOut = new ByteBufferOutput();
+
+    public ObjectEncoderDecoder() {
+        this(TypeRegistry.shared());
+    }
+
+    public ObjectEncoderDecoder(TypeRegistry registry) {
+        this.registry = registry;
+    }
 
     @Override
     public Serializable decodeNextByte(byte nextByte) {
-        if (objectBytes == null) { //indicates that we are still reading the length
+        if (skipRemaining > 0) {
+            skipRemaining--;
+        } else if (objectLength < 0) { //indicates that we are still reading the length
             lengthBuffer.put(nextByte);
             if (!lengthBuffer.hasRemaining()) { //we read 4 bytes and therefore can take the length
                 lengthBuffer.flip();
-                objectBytes = new byte[lengthBuffer.getInt()];
-                objectBytesIndex = 0;
-                lengthBuffer.clear();
+                int length = lengthBuffer.getInt();
+                lengthBuffer.clear(); // before startObject, which throws for an oversized object
+                startObject(length);
             }
         } else {
             objectBytes[objectBytesIndex] = nextByte;
-            if (++objectBytesIndex == objectBytes.length) {
-                Serializable result = deserializeObject();
-                objectBytes = null;
-                return result;
+            if (++objectBytesIndex == objectLength) {
+                return completeObject();
             }
         }
 
         return null;
     }
 
+    @Override
+    public Serializable decodeNext(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (skipRemaining > 0) {
+                int n = Math.min(skipRemaining, buffer.remaining());
+                buffer.position(buffer.position() + n);
+                skipRemaining -= n;
+            } else if (objectLength < 0) {
+                decodeNextByte(buffer.get());
+            } else {
+                int n = Math.min(objectLength - objectBytesIndex, buffer.remaining());
+                buffer.get(objectBytes, objectBytesIndex, n);
+                objectBytesIndex += n;
+                if (objectBytesIndex == objectLength) {
+                    return completeObject();
+                }
+            }
+        }
+        return null;
+    }
+
     @Override
     public byte[] encode(Serializable message) {
-        return serializeObject(message);
+        encoded.reset();
+        DataOutputStream out = encoded.data;
+        try {
+            out.writeInt(0); //placeholder for the object size
+            registry.writeObject(message, out);
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("cannot serialize object", ex);
+        }
+
+        byte[] result = Arrays.copyOf(encoded.bytes, encoded.size);
+        //now write the object size
+        ByteBuffer.wrap(result).putInt(result.length - 4);
+        encoded.trim();
+        return result;
     }
 
-    private Serializable deserializeObject() {
+    @Override
+    public boolean encodeInto(Serializable message, ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < 6) {
+            return false;
+        }
+
+        buffer.position(start + 4); //placeholder for the object size
+        bufferOut.buffer = buffer;
         try {
-            ObjectInput in = new ObjectInputStream(new ByteArrayInputStream(objectBytes));
-            return (Serializable) in.readObject();
+            registry.writeObject(message, bufferOut.data);
+        } catch (BufferOverflowException ex) {
+            buffer.position(start);
+            return false;
         } catch (Exception ex) {
-            throw new IllegalArgumentException("cannot desrialize object", ex);
+            buffer.position(start);
+            throw new IllegalArgumentException("cannot serialize object", ex);
+        } finally {
+            bufferOut.buffer = null;
+        }
+
+        //now write the object size
+        buffer.putInt(start, buffer.position() - start - 4);
+        return true;
+    }
+
+    private void startObject(int length) {
+        if (length < 2) {
+            throw new IllegalArgumentException("bad object size " + length);
+        }
+        if (length > MAX_OBJECT_SIZE) {
+            skipRemaining = length; // keep the stream in sync, but never allocate what the peer asks for
+            throw new MessageTooLargeException(MAX_OBJECT_SIZE);
         }
 
+        if (objectBytes.length < length) {
+            objectBytes = new byte[Math.max(length, Math.min(MAX_OBJECT_SIZE, objectBytes.length * 2))];
+        }
+        objectLength = length;
+        objectBytesIndex = 0;
     }
 
-    private byte[] serializeObject(Serializable message) {
+    private Serializable completeObject() {
         try {
-            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            return readObject();
+        } finally {
+            objectLength = -1;
+            if (objectBytes.length > RETAINED_BUFFER_SIZE) {
+                objectBytes = new byte[INITIAL_BUFFER_SIZE];
+            }
+        }
+    }
 
-            //placeholder for the object size
-            for (int i = 0; i < 4; i++) {
-                bytes.write(0);
+    private Serializable readObject() {
+        input.reset(objectBytes, 0, objectLength);
+        try {
+            return registry.readObject(dataIn);
+        } catch (Exception ex) {
+            throw new IllegalArgumentException("cannot desrialize object", ex);
+        }
+    }
+
+    /**
+     * Reads a range of a byte array, so one DataInputStream serves every message.
+     */
+    private static class ArrayInput extends InputStream {
+        private byte[] bytes;
+        private int position;
+        private int end;
+
+        void reset(byte[] bytes, int from, int to) {
+            this.bytes = bytes;
+            this.position = from;
+            this.end = to;
+        }
+
+        @Override
+        public int read() {
+            return position < end ? bytes[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= end) {
+                return -1;
             }
+            int n = Math.min(len, end - position);
+            System.arraycopy(bytes, position, b, off, n);
+            position += n;
+            return n;
+        }
 
-            ObjectOutput out = new ObjectOutputStream(bytes);
-            out.writeObject(message);
-            out.flush();
-            byte[] result = bytes.toByteArray();
+        @Override
+        public int available() {
+            return end - position;
+        }
+    }
 
-            //now write the object size
-            ByteBuffer.wrap(result).putInt(result.length - 4);
-            return result;
+    /**
+     * A ByteArrayOutputStream whose array is reused by the next encode.
+     */
+    private static class GrowableOutput extends OutputStream {
+        private byte[] bytes = new byte[INITIAL_BUFFER_SIZE];
+        private int size = 0;
+        final DataOutputStream data = new DataOutputStream(this);
 
-        } catch (Exception ex) {
-            throw new IllegalArgumentException("cannot serialize object", ex);
+        void reset() {
+            size = 0;
+        }
+
+        void trim() {
+            if (bytes.length > RETAINED_BUFFER_SIZE) {
+                bytes = new byte[INITIAL_BUFFER_SIZE];
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(size + 1);
+            bytes[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(size + len);
+            System.arraycopy(b, off, bytes, size, len);
+            size += len;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+            }
+        }
+    }
+
+    /**
+     * Writes straight into a ByteBuffer, throwing BufferOverflowException when it is full.
+     */
+    private static class ByteBufferOutput extends OutputStream {
+        private ByteBuffer buffer;
+        final DataOutputStream data = new DataOutputStream(this);
+
+        @Override
+        public void write(int b) {
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buffer.put(b, off, len);
         }
     }
 
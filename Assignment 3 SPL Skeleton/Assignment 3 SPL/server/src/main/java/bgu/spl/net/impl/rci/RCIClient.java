@@ -1,41 +1,205 @@
 package bgu.spl.net.impl.rci;
 
+import bgu.spl.net.api.MessageTooLargeException;
+
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Sends commands to a server running RemoteCommandInvocationProtocol. Every command travels in a
+ * RequestEnvelope and any number of them may be in flight; a background thread reads the
+ * responses and completes the futures sendAsync returned, matching them by id.
+ *
+ * A command that gets no response within rci.timeoutMs milliseconds (default 30000, 0 for no
+ * limit) fails with a TimeoutException. If the connection breaks, or the reader thread stops for
+ * any other reason, every command still waiting fails with the IOException that says why.
+ */
 public class RCIClient implements Closeable {
 
-    private final ObjectEncoderDecoder encdec;
+    private static final int READ_BUFFER_SIZE = 1 << 13; //8k
+    private static final long DEFAULT_TIMEOUT_MS = Long.getLong("rci.timeoutMs", 30_000);
+
+    private static final ScheduledThreadPoolExecutor TIMEOUTS = newTimeoutScheduler();
+
+    private final ObjectEncoderDecoder encoder; // guarded by out
+    private final ObjectEncoderDecoder decoder; // reader thread only
     private final Socket sock;
     private final BufferedInputStream in;
     private final BufferedOutputStream out;
 
+    private final AtomicLong nextId = new AtomicLong();
+    private final ConcurrentHashMap<Long, CompletableFuture<Serializable>> pending = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<CompletableFuture<Serializable>> unclaimed = new LinkedBlockingQueue<>(); // for receive()
+    private volatile IOException failure = null; // why the connection is gone
+    private final Thread reader;
+
     public RCIClient(String host, int port) throws IOException {
         sock = new Socket(host, port);
-        encdec = new ObjectEncoderDecoder();
+        sock.setTcpNoDelay(true);
+        encoder = new ObjectEncoderDecoder();
+        decoder = new ObjectEncoderDecoder();
         in = new BufferedInputStream(sock.getInputStream());
         out = new BufferedOutputStream(sock.getOutputStream());
+
+        reader = new Thread(this::readLoop, "rci-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends a command without waiting for the previous ones to finish, with the rci.timeoutMs limit.
+     * @return completed with the command's result, or exceptionally if it failed, timed out or the
+     *         connection broke
+     */
+    public CompletableFuture<Serializable> sendAsync(Command<?> cmd) throws IOException {
+        return sendAsync(cmd, DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param timeout how long to wait for the response, 0 for no limit
+     */
+    public CompletableFuture<Serializable> sendAsync(Command<?> cmd, long timeout, TimeUnit unit) throws IOException {
+        long id = nextId.incrementAndGet();
+        CompletableFuture<Serializable> future = new CompletableFuture<>();
+        pending.put(id, future); // before the failure check, so fail() either sees it or we see failure
+
+        try {
+            synchronized (out) {
+                if (failure != null)
+                    throw failure;
+                out.write(encoder.encode(new RequestEnvelope(id, cmd)));
+                out.flush();
+            }
+        } catch (IOException ex) {
+            pending.remove(id);
+            throw ex;
+        }
+
+        if (timeout > 0) {
+            ScheduledFuture<?> timer = TIMEOUTS.schedule(() -> {
+                if (pending.remove(id, future))
+                    future.completeExceptionally(new TimeoutException("no response in " + timeout + " " + unit));
+            }, timeout, unit);
+            future.whenComplete((result, error) -> timer.cancel(false));
+        }
+        return future;
     }
 
+    /**
+     * Sends a command whose result is picked up with receive(). No time limit applies.
+     */
     public void send(Command<?> cmd) throws IOException {
-        out.write(encdec.encode(cmd));
-        out.flush();
+        unclaimed.add(sendAsync(cmd, 0, TimeUnit.MILLISECONDS));
     }
 
+    /**
+     * Waits for the result of the oldest command given to send() whose result was not received
+     * yet. As before pipelining, a receive() with no command sent waits for one to be sent.
+     * @throws IOException if the connection broke or the command failed
+     */
     public Serializable receive() throws IOException {
-        int read;
-        while ((read = in.read()) >= 0) {
-            Serializable msg = encdec.decodeNextByte((byte) read);
-            if (msg != null) {
-                return msg;
+        CompletableFuture<Serializable> next;
+        try {
+            next = unclaimed.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for a response", ex);
+        }
+
+        try {
+            return next.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for a response", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause().getMessage(), ex.getCause());
+        }
+    }
+
+    private void readLoop() {
+        byte[] chunk = new byte[READ_BUFFER_SIZE];
+        ByteBuffer buf = ByteBuffer.wrap(chunk);
+        IOException cause = null;
+        try {
+            int read;
+            while ((read = in.read(chunk)) >= 0) {
+                buf.clear();
+                buf.limit(read);
+                while (buf.hasRemaining()) {
+                    Serializable msg = decoder.decodeNext(buf);
+                    if (msg instanceof ResponseEnvelope)
+                        complete((ResponseEnvelope) msg);
+                }
+            }
+            cause = new IOException("disconnected before complete reading message");
+        } catch (IOException ex) {
+            cause = ex;
+        } catch (MessageTooLargeException ex) {
+            // its id was skipped with it, so the request it answers cannot be told apart
+            cause = new IOException("response larger than rci.maxObjectSize, closing the connection", ex);
+        } catch (RuntimeException ex) {
+            cause = new IOException("cannot decode response", ex);
+        } finally {
+            // also reached when an Error kills the thread, so no future waits for a reader that is gone
+            fail(cause != null ? cause : new IOException("response reader stopped"));
+            try {
+                sock.close(); // nothing reads from it any more
+            } catch (IOException ex) {
+                // already gone
             }
         }
+    }
+
+    private void complete(ResponseEnvelope response) {
+        CompletableFuture<Serializable> future = pending.remove(response.id);
+        if (future == null)
+            return; // not ours, or already failed
+
+        if (response.error != null)
+            future.completeExceptionally(new RuntimeException(response.error));
+        else
+            future.complete(response.result);
+    }
+
+    private void fail(IOException cause) {
+        synchronized (out) {
+            if (failure == null)
+                failure = cause;
+        }
+        for (Long id : pending.keySet()) {
+            CompletableFuture<Serializable> future = pending.remove(id);
+            if (future != null)
+                future.completeExceptionally(cause);
+        }
+        CompletableFuture<Serializable> failed = new CompletableFuture<>();
+        failed.completeExceptionally(cause);
+        unclaimed.add(failed); // wakes a receive() that waits for a command that will never be sent
+    }
 
-        throw new IOException("disconnected before complete reading message");
+    private static ScheduledThreadPoolExecutor newTimeoutScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "rci-timeouts");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true); // answered commands do not leave their timers behind
+        return scheduler;
     }
 
     @Override
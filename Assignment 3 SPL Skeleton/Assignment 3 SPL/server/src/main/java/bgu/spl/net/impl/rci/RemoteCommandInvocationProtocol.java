@@ -11,9 +11,30 @@ public class RemoteCommandInvocationProtocol<T> implements MessagingProtocol<Ser
         this.arg = arg;
     }
 
+    /**
+     * Runs a bare Command, or a RequestEnvelope whose response carries the request's id. Commands
+     * of one connection run one at a time in arrival order, so responses come back in that order.
+     */
     @Override
     public Serializable process(Serializable msg) {
-        return ((Command) msg).execute(arg);
+        if (!(msg instanceof RequestEnvelope)) {
+            return run(msg);
+        }
+
+        RequestEnvelope request = (RequestEnvelope) msg;
+        try {
+            return new ResponseEnvelope(request.id, run(request.command));
+        } catch (RuntimeException ex) {
+            return ResponseEnvelope.failure(request.id, String.valueOf(ex));
+        }
+    }
+
+    /**
+     * A client may send any Command; one whose argument is not a T fails with a ClassCastException.
+     */
+    @SuppressWarnings("unchecked")
+    private Serializable run(Object command) {
+        return ((Command<T>) command).execute(arg);
     }
 
     @Override
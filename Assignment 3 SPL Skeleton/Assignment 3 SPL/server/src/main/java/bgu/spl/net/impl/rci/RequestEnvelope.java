@@ -0,0 +1,20 @@
+package bgu.spl.net.impl.rci;
+
+import java.io.Serializable;
+
+/**
+ * A command tagged with the id its response will carry, so many commands can be in flight on one
+ * connection (see RCIClient.sendAsync).
+ */
+public class RequestEnvelope implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public final long id;
+    public final Command<?> command;
+
+    public RequestEnvelope(long id, Command<?> command) {
+        this.id = id;
+        this.command = command;
+    }
+}
@@ -0,0 +1,29 @@
+package bgu.spl.net.impl.rci;
+
+import java.io.Serializable;
+
+/**
+ * The result of the RequestEnvelope with the same id, or the error its command failed with.
+ */
+public class ResponseEnvelope implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public final long id;
+    public final Serializable result;
+    public final String error; // null if the command succeeded
+
+    public ResponseEnvelope(long id, Serializable result) {
+        this(id, result, null);
+    }
+
+    private ResponseEnvelope(long id, Serializable result, String error) {
+        this.id = id;
+        this.result = result;
+        this.error = error;
+    }
+
+    public static ResponseEnvelope failure(long id, String error) {
+        return new ResponseEnvelope(id, null, error);
+    }
+}
@@ -0,0 +1,246 @@
+package bgu.spl.net.impl.rci;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps message classes to small type ids and the serializers of their fields, so the
+ * ObjectEncoderDecoder can send registered types without Java serialization's class descriptors.
+ * Both sides of a connection must register the same types under the same ids. Types that are not
+ * registered are still sent, with Java serialization.
+ *
+ * Ids 1 to 15 are reserved for the built in registrations: String, Integer, Long, Boolean and the
+ * request and response envelopes of pipelined RCI.
+ */
+public class TypeRegistry {
+
+    static final int JAVA_SERIALIZATION = 0; // the type id of unregistered objects
+    public static final int FIRST_USER_ID = 16;
+
+    private static final TypeRegistry SHARED = new TypeRegistry();
+
+    private final ConcurrentHashMap<Class<?>, Registration<?>> byClass = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Registration<?>> byId = new ConcurrentHashMap<>();
+
+    public TypeRegistry() {
+        register(1, String.class, new FieldSerializer<String>() {
+            @Override
+            public void write(String value, DataOutput out) throws IOException {
+                writeString(value, out);
+            }
+
+            @Override
+            public String read(DataInput in) throws IOException {
+                return readString(in);
+            }
+        });
+        register(2, Integer.class, new FieldSerializer<Integer>() {
+            @Override
+            public void write(Integer value, DataOutput out) throws IOException {
+                out.writeInt(value);
+            }
+
+            @Override
+            public Integer read(DataInput in) throws IOException {
+                return in.readInt();
+            }
+        });
+        register(3, Long.class, new FieldSerializer<Long>() {
+            @Override
+            public void write(Long value, DataOutput out) throws IOException {
+                out.writeLong(value);
+            }
+
+            @Override
+            public Long read(DataInput in) throws IOException {
+                return in.readLong();
+            }
+        });
+        register(4, Boolean.class, new FieldSerializer<Boolean>() {
+            @Override
+            public void write(Boolean value, DataOutput out) throws IOException {
+                out.writeBoolean(value);
+            }
+
+            @Override
+            public Boolean read(DataInput in) throws IOException {
+                return in.readBoolean();
+            }
+        });
+        register(5, RequestEnvelope.class, new FieldSerializer<RequestEnvelope>() {
+            @Override
+            public void write(RequestEnvelope value, DataOutput out) throws IOException {
+                out.writeLong(value.id);
+                writeObject(value.command, out); // last, so a Java serialized command may run to the end
+            }
+
+            @Override
+            public RequestEnvelope read(DataInput in) throws IOException {
+                long id = in.readLong();
+                return new RequestEnvelope(id, (Command<?>) readObject(in));
+            }
+        });
+        register(6, ResponseEnvelope.class, new FieldSerializer<ResponseEnvelope>() {
+            @Override
+            public void write(ResponseEnvelope value, DataOutput out) throws IOException {
+                out.writeLong(value.id);
+                out.writeBoolean(value.error != null);
+                if (value.error != null)
+                    writeString(value.error, out);
+                else
+                    writeObject(value.result, out);
+            }
+
+            @Override
+            public ResponseEnvelope read(DataInput in) throws IOException {
+                long id = in.readLong();
+                if (in.readBoolean())
+                    return ResponseEnvelope.failure(id, readString(in));
+                return new ResponseEnvelope(id, readObject(in));
+            }
+        });
+    }
+
+    /**
+     * @return the registry used by encoders created without one
+     */
+    public static TypeRegistry shared() {
+        return SHARED;
+    }
+
+    /**
+     * Registers the exact class type (not its subclasses) under typeId.
+     */
+    public <T extends Serializable> void register(int typeId, Class<T> type, FieldSerializer<T> serializer) {
+        if (typeId <= JAVA_SERIALIZATION || typeId > 0xFFFF)
+            throw new IllegalArgumentException("type id must be between 1 and 65535: " + typeId);
+
+        Registration<T> registration = new Registration<>(typeId, type, serializer);
+        if (byId.putIfAbsent(typeId, registration) != null)
+            throw new IllegalArgumentException("type id " + typeId + " is already registered");
+        if (byClass.putIfAbsent(type, registration) != null) {
+            byId.remove(typeId);
+            throw new IllegalArgumentException(type.getName() + " is already registered");
+        }
+    }
+
+    /**
+     * Writes the type id of value followed by its fields, or by its Java serialized form if its type
+     * is not registered. Serializers may use this for nested objects; a Java serialized object must
+     * be the last thing written, as its reader may consume everything after it.
+     * @param value may be null, which is written as a Java serialized null
+     */
+    @SuppressWarnings("unchecked")
+    public void writeObject(Serializable value, DataOutput out) throws IOException {
+        Registration<Serializable> registration = value == null ? null : (Registration<Serializable>) forObject(value);
+        if (registration == null) {
+            out.writeShort(JAVA_SERIALIZATION);
+            ObjectOutputStream objectOut = new ObjectOutputStream(asStream(out));
+            objectOut.writeObject(value);
+            objectOut.flush();
+        } else {
+            out.writeShort(registration.typeId);
+            registration.serializer.write(value, out);
+        }
+    }
+
+    /**
+     * Reads an object written by writeObject.
+     */
+    public Serializable readObject(DataInput in) throws IOException {
+        int typeId = in.readUnsignedShort();
+        if (typeId == JAVA_SERIALIZATION) {
+            try {
+                return (Serializable) new ObjectInputStream(asStream(in)).readObject();
+            } catch (ClassNotFoundException ex) {
+                throw new IOException("cannot desrialize object", ex);
+            }
+        }
+
+        Registration<?> registration = forId(typeId);
+        if (registration == null)
+            throw new IOException("unknown type id " + typeId);
+        return (Serializable) registration.serializer.read(in);
+    }
+
+    /**
+     * Writes s as its UTF-8 length and bytes; writeUTF stops at 64k.
+     */
+    static void writeString(String s, DataOutput out) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > ObjectEncoderDecoder.MAX_OBJECT_SIZE)
+            throw new IOException("bad string length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static OutputStream asStream(DataOutput out) {
+        if (out instanceof OutputStream)
+            return (OutputStream) out;
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    private static InputStream asStream(DataInput in) {
+        if (in instanceof InputStream)
+            return (InputStream) in;
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                try {
+                    return in.readUnsignedByte();
+                } catch (EOFException ex) {
+                    return -1;
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the registration of the object's class, or null if it goes through Java serialization
+     */
+    Registration<?> forObject(Object value) {
+        return byClass.get(value.getClass());
+    }
+
+    Registration<?> forId(int typeId) {
+        return byId.get(typeId);
+    }
+
+    static class Registration<T> {
+        final int typeId;
+        final Class<T> type;
+        final FieldSerializer<T> serializer;
+
+        Registration(int typeId, Class<T> type, FieldSerializer<T> serializer) {
+            this.typeId = typeId;
+            this.type = type;
+            this.serializer = serializer;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Audit requests (logouts, file uploads) that could not reach the SQL server, one per line in a
+ * local file, in the order they happened. The file survives restarts, so requests spooled by an
+ * earlier run are replayed too.
+ */
+class AuditSpool {
+
+    private final Path file;
+    private int pending; // lines in the file
+    private long spooled = 0;
+    private long replayed = 0;
+
+    AuditSpool(Path file) {
+        this.file = file;
+        this.pending = countLines(file);
+    }
+
+    synchronized boolean hasPending() {
+        return pending > 0;
+    }
+
+    synchronized void append(String request) {
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            out.write(escape(request));
+            out.newLine();
+            pending++;
+            spooled++;
+        } catch (IOException e) {
+            System.err.println("Audit spool error, dropping '" + request + "': " + e.getMessage());
+        }
+    }
+
+    /**
+     * Hands up to max of the spooled requests to send in order, stopping at the first one it fails
+     * on; the rest stays in the file. Appends wait meanwhile, so callers keep max small.
+     * @return the number of requests sent
+     */
+    synchronized int replay(int max, Predicate<String> send) {
+        if (pending == 0)
+            return 0;
+
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while (lines.size() < max && (line = in.readLine()) != null)
+                lines.add(line);
+        } catch (IOException e) {
+            System.err.println("Audit spool error: " + e.getMessage());
+            return 0;
+        }
+
+        int sent = 0;
+        while (sent < lines.size() && send.test(unescape(lines.get(sent))))
+            sent++;
+        if (sent == 0)
+            return 0;
+
+        try {
+            if (sent == pending) {
+                Files.deleteIfExists(file);
+            } else {
+                dropFirstLines(sent);
+            }
+        } catch (IOException e) {
+            System.err.println("Audit spool error: " + e.getMessage()); // the sent lines may be replayed again
+            return sent;
+        }
+        pending -= sent;
+        replayed += sent;
+        return sent;
+    }
+
+    private void dropFirstLines(int count) throws IOException {
+        Path rest = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+             BufferedWriter out = Files.newBufferedWriter(rest, StandardCharsets.UTF_8)) {
+            String line;
+            for (int i = 0; (line = in.readLine()) != null; i++) {
+                if (i >= count) {
+                    out.write(line);
+                    out.newLine();
+                }
+            }
+        }
+        Files.move(rest, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    synchronized long getSpooled() {
+        return spooled;
+    }
+
+    synchronized long getReplayed() {
+        return replayed;
+    }
+
+    synchronized int getPending() {
+        return pending;
+    }
+
+    private static int countLines(Path file) {
+        if (!Files.exists(file))
+            return 0;
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            int lines = 0;
+            while (in.readLine() != null)
+                lines++;
+            return lines;
+        } catch (IOException e) {
+            System.err.println("Audit spool error: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    private static String escape(String request) {
+        return request.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String line) {
+        StringBuilder sb = new StringBuilder(line.length());
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < line.length()) {
+                char next = line.charAt(++i);
+                sb.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
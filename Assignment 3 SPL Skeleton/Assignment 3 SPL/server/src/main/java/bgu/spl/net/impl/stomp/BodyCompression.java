@@ -0,0 +1,68 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+/**
+ * Opt-in compression of MESSAGE bodies, negotiated through the CONNECT "accept-encoding" header.
+ * A compressed body is the deflated bytes themselves, sent with a content-length header as STOMP
+ * 1.2 requires for a body that may contain NUL; the String carries them as ISO-8859-1 chars, the
+ * way StompMessageEncoderDecoder passes content-length bodies through. The chosen encoding is
+ * announced in the CONNECTED frame and repeated in the "content-encoding" header of every
+ * compressed MESSAGE.
+ */
+class BodyCompression {
+
+    static final String DEFLATE = "deflate";
+
+    // Bodies shorter than this are sent as is
+    private static final int THRESHOLD = Integer.getInteger("stomp.compression.threshold", 512);
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<byte[]> CHUNKS = ThreadLocal.withInitial(() -> new byte[1 << 12]);
+
+    private BodyCompression() {
+    }
+
+    /**
+     * @param acceptEncoding the value of the client's "accept-encoding" header, may be null
+     * @return the best encoding both sides support, or null if the client did not opt in
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return null;
+
+        for (String token : acceptEncoding.split(",")) {
+            if (token.trim().equals(DEFLATE))
+                return DEFLATE;
+        }
+        return null;
+    }
+
+    static boolean worthCompressing(String body) {
+        return body != null && body.length() >= THRESHOLD;
+    }
+
+    /**
+     * @return the deflated body as ISO-8859-1 chars, one per byte, or null if compressing did not
+     *         make it smaller
+     */
+    static String compress(String body, String encoding) {
+        byte[] input = body.getBytes(StandardCharsets.UTF_8);
+
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(input);
+        deflater.finish();
+
+        byte[] chunk = CHUNKS.get();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 16);
+        while (!deflater.finished()) {
+            int n = deflater.deflate(chunk);
+            out.write(chunk, 0, n);
+        }
+
+        return out.size() < input.length ? new String(out.toByteArray(), StandardCharsets.ISO_8859_1) : null;
+    }
+}
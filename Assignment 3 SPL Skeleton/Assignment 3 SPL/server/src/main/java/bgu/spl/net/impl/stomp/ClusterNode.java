@@ -0,0 +1,162 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Links this broker with the other nodes of a cluster, so clients may connect to any node.
+ *
+ * Every node dials every peer (see PeerLink) and uses that link to tell the peer which destinations
+ * have local subscribers here, and to forward SENDs the peer is interested in. Links the peers dial
+ * in are read by this class: their interest is recorded per peer and forwarded frames are delivered
+ * to local subscribers only, so a frame crosses at most one link.
+ *
+ * Configured with system properties, all nodes may run on one host:
+ *   stomp.cluster.nodeId - this node's id
+ *   stomp.cluster.port   - the port peers connect to
+ *   stomp.cluster.peers  - the other nodes, comma separated id@host:port
+ */
+class ClusterNode {
+
+    static final byte HELLO = 0;
+    static final byte INTEREST = 1;
+    static final byte FORWARD = 2;
+
+    private static volatile ClusterNode current; // null unless clustering is configured
+
+    private final int nodeId;
+    private final int port;
+    private final List<PeerLink> links = new ArrayList<>();
+    // peer node id -> destinations that have subscribers on that peer
+    private final ConcurrentHashMap<Integer, Set<String>> peerInterest = new ConcurrentHashMap<>();
+
+    private ClusterNode(int nodeId, int port, String peers) {
+        this.nodeId = nodeId;
+        this.port = port;
+        for (String peer : peers.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty())
+                continue;
+
+            int at = peer.indexOf('@');
+            int colon = peer.lastIndexOf(':');
+            if (at <= 0 || colon < at)
+                throw new IllegalArgumentException("cluster peer must be id@host:port: " + peer);
+            links.add(new PeerLink(nodeId, Integer.parseInt(peer.substring(0, at)),
+                    peer.substring(at + 1, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+    }
+
+    static ClusterNode current() {
+        return current;
+    }
+
+    /**
+     * Starts clustering if stomp.cluster.port is set.
+     */
+    static void startFromSystemProperties() throws IOException {
+        Integer port = Integer.getInteger("stomp.cluster.port");
+        if (port == null)
+            return;
+
+        ClusterNode node = new ClusterNode(Integer.getInteger("stomp.cluster.nodeId", port),
+                port, System.getProperty("stomp.cluster.peers", ""));
+        node.start();
+        current = node;
+    }
+
+    private void start() throws IOException {
+        ServerSocket serverSock = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> acceptLoop(serverSock), "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for (PeerLink link : links)
+            link.start();
+        System.out.println("Cluster node " + nodeId + " listening on " + port + " with " + links.size() + " peers");
+    }
+
+    void interestChanged(String dest) {
+        for (PeerLink link : links)
+            link.interestChanged(dest);
+    }
+
+    /**
+     * Forwards a SEND to every peer that has subscribers for its destination.
+     */
+    void forward(String dest, String body, String contentType, boolean rawBody, String conflationKey) {
+        for (PeerLink link : links) {
+            Set<String> interest = peerInterest.get(link.peerId());
+            if (interest != null && interest.contains(dest))
+                link.forward(dest, body, contentType, rawBody, conflationKey);
+        }
+    }
+
+    private void acceptLoop(ServerSocket serverSock) {
+        try (ServerSocket sock = serverSock) {
+            while (!Thread.currentThread().isInterrupted()) {
+                Socket peerSock = sock.accept();
+                Thread reader = new Thread(() -> readLoop(peerSock), "cluster-reader");
+                reader.setDaemon(true);
+                reader.start();
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private void readLoop(Socket peerSock) {
+        int peerId = -1;
+        Set<String> interest = ConcurrentHashMap.newKeySet();
+        try (Socket sock = peerSock) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream(), 1 << 16));
+            if (in.readByte() != HELLO)
+                throw new IOException("cluster peer did not introduce itself");
+            peerId = in.readInt();
+            peerInterest.put(peerId, interest); // a reconnecting peer resends its whole interest
+
+            while (true) {
+                byte type = in.readByte();
+                if (type == INTEREST) {
+                    String dest = in.readUTF();
+                    if (in.readBoolean())
+                        interest.add(dest);
+                    else
+                        interest.remove(dest);
+                } else if (type == FORWARD) {
+                    String dest = in.readUTF();
+                    String contentType = in.readUTF();
+                    boolean rawBody = in.readBoolean();
+                    String conflationKey = in.readUTF();
+                    int length = in.readInt();
+                    if (length < 0 || length > StompMessageEncoderDecoder.MAX_FRAME_SIZE)
+                        throw new IOException("forwarded body of " + length + " bytes"); // a broken or foreign peer
+                    byte[] body = new byte[length];
+                    in.readFully(body);
+                    StompMessagingProtocolImpl.deliverFromPeer(dest,
+                            new String(body, rawBody ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8),
+                            contentType.isEmpty() ? null : contentType, rawBody,
+                            conflationKey.isEmpty() ? null : conflationKey);
+                } else {
+                    throw new IOException("unknown cluster message type " + type);
+                }
+            }
+        } catch (EOFException ex) {
+            // peer went away, it resends everything when it reconnects
+        } catch (IOException ex) {
+            System.err.println("Cluster link from node " + peerId + " failed: " + ex.getMessage());
+        } finally {
+            if (peerId >= 0)
+                peerInterest.remove(peerId, interest);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The credentials of every login the SQL server accepted, kept as salted SHA-256 hashes so that
+ * logins can still be checked while the SQL server is down. Users the snapshot has never seen
+ * cannot log in (or register) until the SQL server is back.
+ */
+class CredentialSnapshot {
+
+    private static final int SALT_BYTES = 16;
+
+    private final ConcurrentHashMap<String, byte[][]> hashes = new ConcurrentHashMap<>(); // user -> {salt, hash}
+    private final SecureRandom random = new SecureRandom();
+
+    void remember(String username, String password) {
+        byte[][] known = hashes.get(username);
+        if (known != null && MessageDigest.isEqual(known[1], hash(known[0], password)))
+            return; // unchanged, skip the new salt
+
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        hashes.put(username, new byte[][] {salt, hash(salt, password)});
+    }
+
+    boolean matches(String username, String password) {
+        byte[][] known = hashes.get(username);
+        return known != null && MessageDigest.isEqual(known[1], hash(known[0], password));
+    }
+
+    int size() {
+        return hashes.size();
+    }
+
+    private static byte[] hash(byte[] salt, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-256
+        }
+    }
+}
@@ -1,22 +1,113 @@
 package bgu.spl.net.impl.stomp;
 
+import bgu.spl.net.impl.data.CircuitBreaker;
+import bgu.spl.net.srv.ActorThreadPool;
+import bgu.spl.net.srv.Metrics;
+
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class DatabaseService {
 
     private static final String PYTHON_HOST = "127.0.0.1";
     private static final int PYTHON_PORT = 7778;
+    private static final int CONNECT_TIMEOUT_MS = Integer.getInteger("stomp.db.connectTimeoutMs", 1000);
+    private static final int REPORT_PAGE_ROWS = Math.max(1, Integer.getInteger("stomp.report.pageRows", 500));
+    private static final int REPORT_MAX_PART_CHARS = Math.max(1, Integer.getInteger("stomp.report.maxPartChars", 32 * 1024));
+    private static final int READ_TIMEOUT_MS = Integer.getInteger("stomp.db.readTimeoutMs", 5000);
+
+    // Fails requests at once after stomp.db.breaker.failures failures in a row, for stomp.db.breaker.openMs
+    private static final CircuitBreaker breaker = new CircuitBreaker(
+            Integer.getInteger("stomp.db.breaker.failures", 5),
+            Long.getLong("stomp.db.breaker.openMs", 5000));
+
+    // Degraded mode (stomp.db.degraded): while the Python server is unreachable, logins are checked
+    // against the credentials it accepted before, and logouts and uploads are spooled to
+    // stomp.db.spoolFile and replayed, in order, once it answers again.
+    private static final boolean DEGRADED = Boolean.getBoolean("stomp.db.degraded");
+    private static final CredentialSnapshot credentials = new CredentialSnapshot();
+    private static final AuditSpool spool = DEGRADED
+            ? new AuditSpool(Paths.get(System.getProperty("stomp.db.spoolFile", "stomp-db-spool.log")))
+            : null;
+
+    // The async API runs requests here, so protocol workers never wait on the database.
+    // Requests of one user run one at a time in call order (a logout is never overtaken by the next login).
+    private static final ActorThreadPool DB_POOL = new ActorThreadPool(Integer.getInteger("stomp.db.threads", 8));
+    // A user's actor key is picked by the hash of the name: users sharing a stripe are ordered
+    // among themselves too, and the keys stay the same however many users come and go.
+    private static final Object[] USER_KEYS = new Object[1024];
+    private static final Object REPLAY_KEY = new Object();
+    private static final AtomicBoolean replayScheduled = new AtomicBoolean();
+    private static final int REPLAY_BATCH = 100; // spooled requests sent while appends wait for the spool
+
+    static {
+        for (int i = 0; i < USER_KEYS.length; i++)
+            USER_KEYS[i] = new Object();
+        Metrics.register("db.breaker.timesOpened", breaker::getTimesOpened);
+        Metrics.register("db.breaker.closed", () -> breaker.getState() == CircuitBreaker.State.CLOSED ? 1 : 0);
+        for (CircuitBreaker.State state : CircuitBreaker.State.values()) {
+            String prefix = "db." + state.name().toLowerCase() + ".";
+            Metrics.register(prefix + "requests", () -> breaker.getRequests(state));
+            Metrics.register(prefix + "avgLatencyMicros", () -> breaker.getAverageLatencyMicros(state));
+            Metrics.register(prefix + "maxLatencyMicros", () -> breaker.getMaxLatencyMicros(state));
+        }
+        Metrics.register("db.spool.pending", DatabaseService::getSpooledRequests);
+        Metrics.register("db.spool.replayed", DatabaseService::getReplayedRequests);
+    }
+
+    /**
+     * Sends a request through the circuit breaker.
+     * @return the response, or "ERROR" if the Python server could not be reached
+     */
+    private static String sendToPython(String message) {
+        String response = request(message);
+        return response == null ? "ERROR" : response;
+    }
+
+    /**
+     * @return the response, or null if the Python server is unreachable or the breaker is open
+     */
+    private static String request(String message) {
+        CircuitBreaker.State state = breaker.acquire();
+        if (state == CircuitBreaker.State.OPEN) {
+            breaker.record(state, 0);
+            return null;
+        }
+
+        long start = System.nanoTime();
+        try {
+            String response = call(message);
+            breaker.onSuccess(state);
+            if (spool != null && spool.hasPending())
+                scheduleReplay();
+            return response;
+        } catch (IOException e) {
+            breaker.onFailure(state);
+            // In a production server, you might log this to a file.
+            System.err.println("Database Service Error: " + e.getMessage());
+            return null;
+        } finally {
+            breaker.record(state, System.nanoTime() - start);
+        }
+    }
 
     /**
      * Handles the raw TCP connection to the Python server.
      * Uses a short-lived socket per request to match the Python server's threaded architecture.
      */
-    private static String sendToPython(String message) {
-        try (Socket socket = new Socket(PYTHON_HOST, PYTHON_PORT);
-             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+    private static String call(String message) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(PYTHON_HOST, PYTHON_PORT), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(READ_TIMEOUT_MS); // a hung server fails the request instead of its worker
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
 
             // 1. Send the message with the required null terminator
             out.write(message);
@@ -28,16 +119,49 @@ public class DatabaseService {
             int c;
             while ((c = in.read()) != -1) {
                 if (c == '\0') {
-                    break;
+                    return response.toString();
                 }
                 response.append((char) c);
             }
-            return response.toString();
+            throw new EOFException("connection closed before the response ended");
+        }
+    }
 
-        } catch (IOException e) {
-            // In a production server, you might log this to a file.
-            System.err.println("Database Service Error: " + e.getMessage());
-            return "ERROR";
+    /**
+     * Sends an audit request, or spools it in degraded mode if it cannot be sent. While earlier
+     * requests are still spooled new ones are spooled behind them, so they reach the server in
+     * order; the replay that sends them runs as its own task, the caller does not wait for it.
+     */
+    private static void audit(String message) {
+        if (spool == null) {
+            sendToPython(message);
+            return;
+        }
+        if (spool.hasPending()) {
+            spool.append(message);
+            scheduleReplay();
+            return;
+        }
+        if (request(message) == null)
+            spool.append(message);
+    }
+
+    /**
+     * Queues a replay of the spool unless one is queued already, so there is one at a time.
+     */
+    private static void scheduleReplay() {
+        if (replayScheduled.compareAndSet(false, true))
+            DB_POOL.submit(REPLAY_KEY, DatabaseService::replaySpool);
+    }
+
+    /**
+     * Sends the spool REPLAY_BATCH requests at a time, until it is empty or a request fails; the
+     * breaker keeps a replay against a server that is down cheap.
+     */
+    private static void replaySpool() {
+        replayScheduled.set(false); // requests spooled from now on schedule another replay
+        while (spool.replay(REPLAY_BATCH, message -> request(message) != null) == REPLAY_BATCH) {
+            // a full batch went through, there may be more
         }
     }
 
@@ -45,74 +169,212 @@ public class DatabaseService {
 
     public static boolean validateUser(String username, String password) {
         // Protocol: LOGIN <user> <pass>
-        String response = sendToPython("LOGIN " + username + " " + password);
-        return "login success".equals(response);
+        String response = request("LOGIN " + username + " " + password);
+        if (response == null)
+            return DEGRADED && credentials.matches(username, password);
+
+        boolean success = "login success".equals(response);
+        if (success && DEGRADED)
+            credentials.remember(username, password);
+        return success;
     }
 
     public static void logoutUser(String username) {
         // Protocol: LOGOUT <user>
         // We read the response to ensure the Python server processes the command before we close the socket
-        sendToPython("LOGOUT " + username);
+        audit("LOGOUT " + username);
     }
 
     public static void addFile(String username, String filename) {
         if (filename == null || filename.isEmpty()) return;
         // Protocol: add_file <user> <filename>
-        sendToPython("add_file " + username + " " + filename);
+        audit("add_file " + username + " " + filename);
     }
 
-    public static String generateReport() {
-        // 1. Fetch data sequentially
-        // The Python server distinguishes queries by the "SELECT" keyword
-        String usersResp = sendToPython("SELECT username FROM users");
-        String loginsResp = sendToPython("SELECT username, login_time, logout_time FROM logins");
-        String filesResp = sendToPython("SELECT username, filename, upload_time FROM files");
+    // --- Async API ---
+
+    public static CompletableFuture<Boolean> validateUserAsync(String username, String password) {
+        return submit(username, () -> validateUser(username, password));
+    }
 
-        // 2. Format the data into the final string
+    public static void logoutUserAsync(String username) {
+        submit(username, () -> {
+            logoutUser(username);
+            return null;
+        });
+    }
+
+    public static void addFileAsync(String username, String filename) {
+        submit(username, () -> {
+            addFile(username, filename);
+            return null;
+        });
+    }
+
+    /**
+     * Streams the report from a database thread, see streamReport. Ordered after the requests of
+     * the given user, so the report includes the user's own uploads.
+     */
+    public static void streamReportAsync(String username, ReportListener listener) {
+        submit(username, () -> {
+            streamReport(listener);
+            return null;
+        });
+    }
+
+    private static <R> CompletableFuture<R> submit(String username, Supplier<R> request) {
+        CompletableFuture<R> result = new CompletableFuture<>();
+        Object key = USER_KEYS[((username == null ? 0 : username.hashCode()) & 0x7fffffff) % USER_KEYS.length];
+        DB_POOL.submit(key, () -> {
+            try {
+                result.complete(request.get());
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    // --- Metrics ---
+
+    public static CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    public static int getSpooledRequests() {
+        return spool == null ? 0 : spool.getPending();
+    }
+
+    public static long getReplayedRequests() {
+        return spool == null ? 0 : spool.getReplayed();
+    }
+
+    /**
+     * The whole report as one string, for callers that want it at once.
+     */
+    public static String generateReport() {
         StringBuilder sb = new StringBuilder();
-        sb.append("Server Stats:\n");
-        
+        streamReport((index, text, last) -> {
+            sb.append(text);
+            return true;
+        });
+        return sb.toString();
+    }
+
+    /**
+     * Generates the report page by page and hands it to the listener in parts of at most
+     * stomp.report.maxPartChars characters, so neither the report nor a table is ever held whole.
+     * The next page is only read once the listener returns from the previous part, so a listener
+     * that waits for its client paces the queries too.
+     */
+    public static void streamReport(ReportListener listener) {
+        ReportWriter out = new ReportWriter(listener);
+        out.append("Server Stats:\n");
+
         // Users Section
-        sb.append("Users:\n");
-        if (!usersResp.startsWith("ERROR") && !usersResp.isEmpty()) {
-            String[] lines = usersResp.split("\n");
-            for (String line : lines) {
-                if (!line.trim().isEmpty()) {
-                    sb.append(" ").append(line.trim()).append("\n");
-                }
+        out.append("Users:\n");
+        forEachRow(out, "users", "username", row -> {
+            if (!row[1].trim().isEmpty()) {
+                out.append(" ").append(row[1].trim()).append("\n");
             }
-        }
+        });
 
         // Stats Section (Logins)
-        sb.append("Stats:\n");
-        if (!loginsResp.startsWith("ERROR") && !loginsResp.isEmpty()) {
-            String[] lines = loginsResp.split("\n");
-            for (String line : lines) {
+        out.append("Stats:\n");
+        forEachRow(out, "logins", "username, login_time, logout_time", row -> {
+            if (row.length >= 3) {
+                // Handle cases where logout is None or missing
+                String logout = (row.length > 3 && !row[3].equals("None")) ? row[3] : "null";
+                out.append(" ").append(row[1]).append(": ").append(row[2]).append(" - ").append(logout).append("\n");
+            }
+        });
+
+        // Files Section
+        out.append("Files:\n");
+        forEachRow(out, "files", "username, filename", row -> {
+            if (row.length >= 3) {
+                out.append(" ").append(row[1]).append(" uploaded ").append(row[2]).append("\n");
+            }
+        });
+
+        out.finish();
+    }
+
+    /**
+     * Reads a table REPORT_PAGE_ROWS rows at a time, each query continuing after the last rowid
+     * the previous one returned, so a page costs the same however far into the table it is.
+     * Stops early once the listener of out stopped the report.
+     * @param action gets the rowid followed by the columns, as the Python server returned them
+     */
+    private static void forEachRow(ReportWriter out, String table, String columns, Consumer<String[]> action) {
+        long lastRowId = 0;
+        while (true) {
+            // The Python server distinguishes queries by the "SELECT" keyword
+            String page = sendToPython("SELECT rowid, " + columns + " FROM " + table
+                    + " WHERE rowid > " + lastRowId + " ORDER BY rowid LIMIT " + REPORT_PAGE_ROWS);
+            if (page.startsWith("ERROR") || page.isEmpty()) {
+                return;
+            }
+
+            int rows = 0;
+            for (String line : page.split("\n")) {
                 if (line.trim().isEmpty()) continue;
-                String[] parts = line.split("\\|"); // Python returns pipe-delimited data
-                if (parts.length >= 2) {
-                    String user = parts[0];
-                    String login = parts[1];
-                    // Handle cases where logout is None or missing
-                    String logout = (parts.length > 2 && !parts[2].equals("None")) ? parts[2] : "null";
-                    sb.append(" ").append(user).append(": ").append(login).append(" - ").append(logout).append("\n");
+                String[] row = line.split("\\|"); // Python returns pipe-delimited data
+                try {
+                    lastRowId = Long.parseLong(row[0]);
+                } catch (NumberFormatException e) {
+                    continue; // a value with a line break in it, the rest of the row is lost
                 }
+                rows++;
+                action.accept(row);
+            }
+            if (rows < REPORT_PAGE_ROWS || out.stopped) {
+                return;
             }
         }
-        
-        // Files Section
-        sb.append("Files:\n");
-        if (!filesResp.startsWith("ERROR") && !filesResp.isEmpty()) {
-            String[] lines = filesResp.split("\n");
-            for (String line : lines) {
-                if (line.trim().isEmpty()) continue;
-                String[] parts = line.split("\\|");
-                if (parts.length >= 2) {
-                    sb.append(" ").append(parts[0]).append(" uploaded ").append(parts[1]).append("\n");
+    }
+
+    public interface ReportListener {
+        /**
+         * @param index counts the parts of one report from 0
+         * @param last true for the final part, which may be empty
+         * @return false to stop the report, e.g. when the client is gone; no more parts follow
+         */
+        boolean onPart(int index, String text, boolean last);
+    }
+
+    /**
+     * Collects report text and passes it on whenever a part is full.
+     */
+    private static class ReportWriter {
+        private final ReportListener listener;
+        private final StringBuilder part = new StringBuilder();
+        private int index = 0;
+        private boolean stopped = false; // the listener asked for no more parts
+
+        ReportWriter(ReportListener listener) {
+            this.listener = listener;
+        }
+
+        ReportWriter append(String text) {
+            if (stopped)
+                return this;
+            part.append(text);
+            while (part.length() >= REPORT_MAX_PART_CHARS) {
+                if (!listener.onPart(index++, part.substring(0, REPORT_MAX_PART_CHARS), false)) {
+                    stopped = true;
+                    part.setLength(0);
+                    return this;
                 }
+                part.delete(0, REPORT_MAX_PART_CHARS);
             }
+            return this;
+        }
+
+        void finish() {
+            if (!stopped)
+                listener.onPart(index++, part.toString(), true);
+            part.setLength(0);
         }
-        
-        return sb.toString();
     }
-}
\ No newline at end of file
+}
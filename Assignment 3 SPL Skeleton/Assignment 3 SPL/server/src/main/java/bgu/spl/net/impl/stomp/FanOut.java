@@ -0,0 +1,102 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.ActorThreadPool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers sends to large destinations in parallel, off the publisher's thread.
+ *
+ * Subscribers are split into lanes by connection id, and every lane is an actor of a shared
+ * ActorThreadPool, so one lane runs on one thread at a time. A subscriber always falls in the same
+ * lane, which keeps the messages it gets from one destination in publishing order. Once a
+ * destination has lane work in flight, its sends keep going through the lanes even if it shrank
+ * below the threshold, so an inline delivery can never overtake an earlier one.
+ */
+class FanOut {
+
+    // destinations with at least this many subscribers are delivered in parallel
+    private static final int THRESHOLD = Integer.getInteger("stomp.fanout.threshold", 1024);
+    private static final int LANES = Integer.getInteger("stomp.fanout.lanes",
+            2 * Runtime.getRuntime().availableProcessors());
+
+    // daemon threads, so lanes never keep the JVM alive; StompServer shuts the pool down once it stops serving
+    private static final ActorThreadPool POOL = new ActorThreadPool(Integer.getInteger("stomp.fanout.threads",
+            Runtime.getRuntime().availableProcessors()), FanOut::newLaneThread);
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final Object[] LANE_KEYS = new Object[LANES]; // ActorThreadPool keys actors by identity
+    private static final ConcurrentHashMap<String, AtomicInteger> inFlight = new ConcurrentHashMap<>(); // lane tasks per destination
+
+    static {
+        for (int i = 0; i < LANES; i++)
+            LANE_KEYS[i] = new Object();
+    }
+
+    /**
+     * Delivers one message to a single subscriber.
+     */
+    interface Delivery {
+        /**
+         * @param compressedBodies cache of the message's encoded forms, shared by the calls of one
+         *        submit, which may come from several lanes at once
+         */
+        void deliver(Integer connectionId, String subscriptionId, Map<String, String> compressedBodies);
+    }
+
+    /**
+     * Hands the delivery to every subscriber over to the lanes, if the destination is large enough.
+     * @return false if the caller should deliver inline instead
+     */
+    static boolean submit(String dest, Map<Integer, String> subscribers, Delivery delivery) {
+        AtomicInteger pending = inFlight.get(dest);
+        if (subscribers.size() < THRESHOLD && (pending == null || pending.get() == 0))
+            return false;
+
+        List<List<Map.Entry<Integer, String>>> partitions = new ArrayList<>(LANES);
+        for (int i = 0; i < LANES; i++)
+            partitions.add(new ArrayList<>());
+        for (Map.Entry<Integer, String> entry : subscribers.entrySet())
+            partitions.get(Math.floorMod(entry.getKey(), LANES)).add(entry);
+
+        if (pending == null)
+            pending = inFlight.computeIfAbsent(dest, k -> new AtomicInteger());
+        // each body is compressed once per encoding for all lanes, hence synchronized
+        Map<String, String> compressedBodies = Collections.synchronizedMap(new HashMap<>());
+        for (int lane = 0; lane < LANES; lane++) {
+            List<Map.Entry<Integer, String>> partition = partitions.get(lane);
+            if (partition.isEmpty())
+                continue;
+
+            AtomicInteger counter = pending;
+            counter.incrementAndGet();
+            POOL.submit(LANE_KEYS[lane], () -> {
+                try {
+                    for (Map.Entry<Integer, String> entry : partition)
+                        delivery.deliver(entry.getKey(), entry.getValue(), compressedBodies);
+                } finally {
+                    counter.decrementAndGet();
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Stops the lanes; deliveries still queued are dropped.
+     */
+    static void shutdown() {
+        POOL.shutdown();
+    }
+
+    private static Thread newLaneThread(Runnable r) {
+        Thread thread = new Thread(r, "fanout-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
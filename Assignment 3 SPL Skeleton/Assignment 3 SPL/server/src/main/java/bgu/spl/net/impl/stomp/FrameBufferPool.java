@@ -0,0 +1,69 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of frame accumulation buffers shared by all decoders, bucketed in power of two size classes
+ * starting at 1k. Decoders borrow a buffer only while a frame is partially received, so idle
+ * connections hold no buffer at all and the memory of one large frame is reused by the next.
+ */
+class FrameBufferPool {
+
+    private static final int MIN_CLASS_SHIFT = 10; // 1k
+    // idle bytes kept per size class, anything released beyond that is left to the GC
+    private static final int BYTES_PER_CLASS = Integer.getInteger("stomp.framePool.bytesPerClass", 1 << 22);
+
+    private final SizeClass[] classes;
+
+    FrameBufferPool(int maxBufferSize) {
+        classes = new SizeClass[classOf(maxBufferSize) + 1];
+        for (int i = 0; i < classes.length; i++)
+            classes[i] = new SizeClass(Math.max(1, BYTES_PER_CLASS >> (MIN_CLASS_SHIFT + i)));
+    }
+
+    /**
+     * @return a buffer of at least minCapacity bytes, with unspecified content
+     */
+    byte[] acquire(int minCapacity) {
+        int sizeClass = classOf(minCapacity);
+        byte[] buffer = classes[sizeClass].free.poll();
+        if (buffer == null)
+            return new byte[1 << (MIN_CLASS_SHIFT + sizeClass)];
+
+        classes[sizeClass].count.decrementAndGet();
+        return buffer;
+    }
+
+    void release(byte[] buffer) {
+        int sizeClass = classOf(buffer.length);
+        if (sizeClass >= classes.length || buffer.length != 1 << (MIN_CLASS_SHIFT + sizeClass))
+            return; // not one of ours
+
+        SizeClass free = classes[sizeClass];
+        if (free.count.incrementAndGet() > free.max) {
+            free.count.decrementAndGet();
+            return;
+        }
+        free.free.offer(buffer);
+    }
+
+    private static int classOf(int capacity) {
+        if (capacity <= 1 << MIN_CLASS_SHIFT)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_CLASS_SHIFT;
+    }
+
+    /**
+     * The idle buffers of one size class.
+     */
+    private static class SizeClass {
+        final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<>();
+        final AtomicInteger count = new AtomicInteger();
+        final int max;
+
+        SizeClass(int max) {
+            this.max = max;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The state of the game played on one destination, folded from the event bodies clients report
+ * (see the client's StompProtocol "report" command and its Event(frame_body) parser): the team
+ * names, the latest value of every general, team a and team b update, and the latest event with
+ * the user who reported it.
+ *
+ * A subscriber may ask for it with SUBSCRIBE snapshot:true and then gets it as its first MESSAGE,
+ * in the same body format as an event, instead of having to see every event since kickoff.
+ * Updates and the snapshot of a new subscriber are synchronized on the instance.
+ */
+class GameState {
+
+    private static final ConcurrentHashMap<String, GameState> games = new ConcurrentHashMap<>(); // destination -> state
+
+    private String teamA = "";
+    private String teamB = "";
+    private String latestUser = "";
+    private String latestEvent = "";
+    private int latestTime = 0;
+    private final Map<String, String> generalUpdates = new LinkedHashMap<>();
+    private final Map<String, String> teamAUpdates = new LinkedHashMap<>();
+    private final Map<String, String> teamBUpdates = new LinkedHashMap<>();
+    private int events = 0;
+
+    /**
+     * @return the state of dest if the body is a game event, created on the first one, otherwise null
+     */
+    static GameState forEvent(String dest, String body) {
+        if (!isGameEvent(body)) {
+            return null;
+        }
+        return games.computeIfAbsent(dest, k -> new GameState());
+    }
+
+    /**
+     * @return the state of dest, or null if no game event was published there
+     */
+    static GameState of(String dest) {
+        return games.get(dest);
+    }
+
+    private static boolean isGameEvent(String body) {
+        return body != null && (body.startsWith("team a:") || body.contains("\nteam a:"))
+                && body.contains("\nevent name:");
+    }
+
+    /**
+     * Folds one event into the state, reading it the way the client's Event parser does. Updates
+     * apply in the order events are published; the latest event is the one with the largest time,
+     * the later published one on a tie.
+     */
+    void apply(String body) {
+        String user = "";
+        String event = "";
+        int time = 0;
+        Map<String, String> section = null;
+        for (String line : body.split("\n")) {
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+
+            if (line.startsWith("user:")) user = valueOf(line);
+            else if (line.startsWith("team a:")) teamA = valueOf(line);
+            else if (line.startsWith("team b:")) teamB = valueOf(line);
+            else if (line.startsWith("event name:")) event = valueOf(line);
+            else if (line.startsWith("time:")) time = parseTime(valueOf(line));
+            else if (line.startsWith("general game updates:")) section = generalUpdates;
+            else if (line.startsWith("team a updates:")) section = teamAUpdates;
+            else if (line.startsWith("team b updates:")) section = teamBUpdates;
+            else if (line.startsWith("description:")) section = null; // free text, not state
+            else if (section != null && line.indexOf(':') > 0) {
+                int colon = line.indexOf(':');
+                section.put(line.substring(0, colon), valueOf(line));
+            }
+        }
+        if (events == 0 || time >= latestTime) {
+            latestUser = user;
+            latestEvent = event;
+            latestTime = time;
+        }
+        events++;
+    }
+
+    /**
+     * @return the state as an event body the client can parse, or null before the first event
+     */
+    String snapshot() {
+        if (events == 0) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("user: ").append(latestUser).append("\n");
+        sb.append("team a: ").append(teamA).append("\n");
+        sb.append("team b: ").append(teamB).append("\n");
+        sb.append("event name: ").append(latestEvent).append("\n");
+        sb.append("time: ").append(latestTime).append("\n");
+        appendSection(sb, "general game updates:", generalUpdates);
+        appendSection(sb, "team a updates:", teamAUpdates);
+        appendSection(sb, "team b updates:", teamBUpdates);
+        sb.append("description:\n").append("Game state after ").append(events).append(" events\n");
+        return sb.toString();
+    }
+
+    private static void appendSection(StringBuilder sb, String title, Map<String, String> updates) {
+        sb.append(title).append("\n");
+        for (Map.Entry<String, String> update : updates.entrySet()) {
+            sb.append(update.getKey()).append(": ").append(update.getValue()).append("\n");
+        }
+    }
+
+    private static String valueOf(String line) {
+        int colon = line.indexOf(':');
+        return line.substring(colon + 1).trim();
+    }
+
+    private static int parseTime(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
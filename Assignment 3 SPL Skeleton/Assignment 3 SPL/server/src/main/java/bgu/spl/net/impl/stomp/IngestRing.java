@@ -0,0 +1,188 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A memory-mapped file holding a ring of SEND frames, written by one producer process (see
+ * RingProducer) and read by the broker (see RingIngestor). Either side may create the file.
+ *
+ * Layout, big endian, every sequence on its own cache line:
+ *   0    magic int, capacity int
+ *   64   producer sequence: bytes ever written, a long
+ *   128  consumer sequence: bytes ever consumed, a long
+ *   192  capacity bytes of records, a power of two
+ *
+ * A sequence s is at data offset s & (capacity - 1), so the sequences only grow and the producer
+ * has room for capacity - (producer - consumer) bytes. A record is an int length, the frame's
+ * bytes and padding to a multiple of 8, so a length never wraps around the end. A record that
+ * would is written at the start instead, after a PADDING length that skips the rest of the ring.
+ *
+ * Each side writes its records or reads them before it publishes its sequence with a release
+ * fence, and reads the other side's sequence with an acquire fence before it looks at the records.
+ * The fences are VarHandle's on Java 9 and later and sun.misc.Unsafe's on Java 8; both order the
+ * accesses to the mapped memory itself, so they hold between processes too.
+ */
+final class IngestRing {
+
+    static final int MAGIC = 0x53544d52; // "STMR"
+    static final int PADDING = -1;
+    static final int ALIGNMENT = 8;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int PRODUCER_OFFSET = 64;
+    private static final int CONSUMER_OFFSET = 128;
+    private static final int DATA_OFFSET = 192;
+
+    // VarHandle's fences exist since Java 9, the sources stay Java 8 compatible
+    private static final MethodHandle ACQUIRE_FENCE = fence("acquireFence", "loadFence");
+    private static final MethodHandle RELEASE_FENCE = fence("releaseFence", "storeFence");
+
+    private final FileChannel file;
+    private final MappedByteBuffer map;
+    private final int capacity;
+    private final int mask;
+
+    private IngestRing(FileChannel file, MappedByteBuffer map, int capacity) {
+        this.file = file;
+        this.map = map;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Maps the ring at path, creating it with the given capacity if the file is new; an existing
+     * ring keeps its capacity and sequences.
+     * @param capacity rounded up to a power of two
+     * @throws IOException if the file exists and is not a ring
+     */
+    static IngestRing open(Path path, int capacity) throws IOException {
+        if (capacity < 2 * ALIGNMENT || capacity > 1 << 30)
+            throw new IllegalArgumentException("ring capacity must be between 16 bytes and 1G: " + capacity);
+        capacity = Integer.highestOneBit(capacity - 1) << 1;
+
+        FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE);
+        FileLock lock = null;
+        try {
+            lock = file.lock(); // the producer and the broker may both be creating it
+            if (file.size() == 0) {
+                MappedByteBuffer map = file.map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + capacity);
+                map.putInt(CAPACITY_OFFSET, capacity);
+                map.putInt(0, MAGIC);
+                return new IngestRing(file, map, capacity);
+            }
+
+            MappedByteBuffer header = file.map(FileChannel.MapMode.READ_ONLY, 0, DATA_OFFSET);
+            int existing = header.getInt(CAPACITY_OFFSET);
+            if (header.getInt(0) != MAGIC || Integer.bitCount(existing) != 1 || file.size() < DATA_OFFSET + existing)
+                throw new IOException(path + " is not an ingestion ring");
+            return new IngestRing(file, file.map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + existing), existing);
+        } catch (IOException | RuntimeException ex) {
+            file.close(); // releases the lock too
+            throw ex;
+        } finally {
+            if (lock != null && lock.isValid())
+                lock.release();
+        }
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    long producerSequence() {
+        long seq = map.getLong(PRODUCER_OFFSET);
+        acquireFence();
+        return seq;
+    }
+
+    void publishProducerSequence(long seq) {
+        releaseFence();
+        map.putLong(PRODUCER_OFFSET, seq);
+    }
+
+    long consumerSequence() {
+        long seq = map.getLong(CONSUMER_OFFSET);
+        acquireFence();
+        return seq;
+    }
+
+    void publishConsumerSequence(long seq) {
+        releaseFence();
+        map.putLong(CONSUMER_OFFSET, seq);
+    }
+
+    /**
+     * @return the data offset of seq, relative to the start of the records
+     */
+    int offset(long seq) {
+        return (int) (seq & mask);
+    }
+
+    /**
+     * A view of the records; absolute positions are DATA_OFFSET + offset(seq).
+     */
+    MappedByteBuffer buffer() {
+        return map;
+    }
+
+    static int dataStart() {
+        return DATA_OFFSET;
+    }
+
+    /**
+     * @return the bytes a record with a frame of length bytes takes
+     */
+    static int recordSize(int length) {
+        return (4 + length + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    void close() throws IOException {
+        file.close();
+    }
+
+    private static void acquireFence() {
+        try {
+            ACQUIRE_FENCE.invokeExact();
+        } catch (Throwable ex) {
+            throw new IllegalStateException(ex); // a fence does not throw
+        }
+    }
+
+    private static void releaseFence() {
+        try {
+            RELEASE_FENCE.invokeExact();
+        } catch (Throwable ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @param name the static VarHandle fence, Java 9 and later
+     * @param java8Name the sun.misc.Unsafe fence with the same ordering, for Java 8
+     */
+    private static MethodHandle fence(String name, String java8Name) {
+        MethodType type = MethodType.methodType(void.class);
+        try {
+            return MethodHandles.publicLookup().findStatic(Class.forName("java.lang.invoke.VarHandle"), name, type);
+        } catch (ReflectiveOperationException ex) {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                return MethodHandles.lookup().findVirtual(unsafeClass, java8Name, type).bindTo(theUnsafe.get(null));
+            } catch (ReflectiveOperationException | RuntimeException java8) {
+                // a lock would only fence this process, the ring would be unsafe to share
+                throw new ExceptionInInitializerError(java8);
+            }
+        }
+    }
+}
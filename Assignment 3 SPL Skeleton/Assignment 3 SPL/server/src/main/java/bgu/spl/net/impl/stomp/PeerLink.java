@@ -0,0 +1,190 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The outgoing half of the link to one cluster peer. A dedicated thread keeps the TCP connection up,
+ * announces which destinations have local subscribers and writes forwarded frames. Messages are
+ * written back to back and flushed only when the queue runs empty, so bursts travel in few packets.
+ */
+class PeerLink implements Runnable {
+
+    private static final int MAX_PENDING_FORWARDS = Integer.getInteger("stomp.cluster.maxPendingForwards", 1 << 16);
+    private static final long RECONNECT_DELAY_MS = 1000;
+    private static final int MAX_UTF_BYTES = 65535; // what writeUTF can write
+
+    private final int localId;
+    private final int peerId;
+    private final String host;
+    private final int port;
+
+    private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>(); // Forward or destination name
+    private final Set<String> dirtyInterest = ConcurrentHashMap.newKeySet(); // destinations queued for announcement
+    private final Set<String> announced = new HashSet<>(); // what the peer believes, writer thread only
+    private final AtomicInteger pendingForwards = new AtomicInteger();
+    private final AtomicLong droppedForwards = new AtomicLong();
+    private volatile boolean connected = false;
+
+    PeerLink(int localId, int peerId, String host, int port) {
+        this.localId = localId;
+        this.peerId = peerId;
+        this.host = host;
+        this.port = port;
+    }
+
+    int peerId() {
+        return peerId;
+    }
+
+    long getDroppedForwards() {
+        return droppedForwards.get();
+    }
+
+    void start() {
+        Thread t = new Thread(this, "cluster-link-" + peerId);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    void interestChanged(String dest) {
+        if (!fitsUtf(dest))
+            return; // no SEND to it can be forwarded either
+        if (dirtyInterest.add(dest))
+            queue.add(dest); // the writer reads the current state when it gets to it
+    }
+
+    void forward(String dest, String body, String contentType, boolean rawBody, String conflationKey) {
+        if (!fitsUtf(dest) || !fitsUtf(contentType) || !fitsUtf(conflationKey)) {
+            droppedForwards.incrementAndGet(); // writeUTF would fail and take the link down with it
+            return;
+        }
+        if (!connected) {
+            droppedForwards.incrementAndGet(); // the peer resends its interest once the link is back
+            return;
+        }
+        if (pendingForwards.incrementAndGet() > MAX_PENDING_FORWARDS) {
+            pendingForwards.decrementAndGet();
+            droppedForwards.incrementAndGet(); // the peer is not keeping up
+            return;
+        }
+        queue.add(new Forward(dest, body, contentType, rawBody, conflationKey));
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try (Socket sock = new Socket()) {
+                sock.connect(new InetSocketAddress(host, port));
+                sock.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream(), 1 << 16));
+
+                out.writeByte(ClusterNode.HELLO);
+                out.writeInt(localId);
+                announced.clear();
+                for (String dest : StompMessagingProtocolImpl.localDestinations()) {
+                    if (fitsUtf(dest))
+                        announce(out, dest);
+                }
+                out.flush();
+                connected = true;
+
+                writeLoop(out);
+            } catch (IOException ex) {
+                // peer down or link broken - retry below
+            } catch (InterruptedException ex) {
+                return;
+            } finally {
+                connected = false;
+            }
+
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    private void writeLoop(DataOutputStream out) throws IOException, InterruptedException {
+        while (true) {
+            Object next = queue.poll();
+            if (next == null) {
+                out.flush();
+                next = queue.take();
+            }
+
+            if (next instanceof Forward) {
+                pendingForwards.decrementAndGet();
+                Forward f = (Forward) next;
+                byte[] body = f.body.getBytes(f.rawBody ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+                out.writeByte(ClusterNode.FORWARD);
+                out.writeUTF(f.dest);
+                out.writeUTF(f.contentType == null ? "" : f.contentType);
+                out.writeBoolean(f.rawBody);
+                out.writeUTF(f.conflationKey == null ? "" : f.conflationKey);
+                out.writeInt(body.length);
+                out.write(body);
+            } else {
+                String dest = (String) next;
+                dirtyInterest.remove(dest);
+                announce(out, dest);
+            }
+        }
+    }
+
+    private void announce(DataOutputStream out, String dest) throws IOException {
+        boolean interested = StompMessagingProtocolImpl.hasLocalSubscribers(dest);
+        if (interested == announced.contains(dest))
+            return; // the peer already knows
+
+        out.writeByte(ClusterNode.INTEREST);
+        out.writeUTF(dest);
+        out.writeBoolean(interested);
+        if (interested)
+            announced.add(dest);
+        else
+            announced.remove(dest);
+    }
+
+    /**
+     * @return true if writeUTF can write s, which is at most 65535 bytes of modified UTF-8; null
+     *         headers are written as ""
+     */
+    private static boolean fitsUtf(String s) {
+        if (s == null || s.length() <= MAX_UTF_BYTES / 3)
+            return true;
+        long bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            bytes += c >= 1 && c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+        }
+        return bytes <= MAX_UTF_BYTES;
+    }
+
+    private static class Forward {
+        final String dest;
+        final String body;
+        final String contentType;
+        final boolean rawBody;
+        final String conflationKey;
+
+        Forward(String dest, String body, String contentType, boolean rawBody, String conflationKey) {
+            this.dest = dest;
+            this.body = body;
+            this.contentType = contentType;
+            this.rawBody = rawBody;
+            this.conflationKey = conflationKey;
+        }
+    }
+}
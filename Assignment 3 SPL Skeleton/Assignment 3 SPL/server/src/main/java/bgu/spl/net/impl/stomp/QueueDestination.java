@@ -0,0 +1,291 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.Connections;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A point-to-point destination, any destination under /queue/: every message goes to exactly one
+ * of its subscribers, so a pool of worker clients shares the work instead of each doing all of it.
+ *
+ * A subscriber's in-flight count is the messages it got and did not ACK yet. Only subscriptions
+ * with ack:client or ack:client-individual have one; with ack:auto a message is done once it is
+ * handed to the connection. A subscriber may cap its count with a prefetch header. While every
+ * subscriber is at its cap, or there is none, messages wait in the queue. NACK, UNSUBSCRIBE,
+ * DISCONNECT and a dropped connection put a subscriber's unacked messages back at the head of the
+ * queue, and they are delivered again with redelivered:true.
+ *
+ * Configured with system properties:
+ *   stomp.queue.dispatch        - least-outstanding (default): the subscriber with the fewest
+ *                                 messages in flight, round-robin among equals. Only
+ *                                 ack:client and ack:client-individual subscribers have
+ *                                 messages in flight, so ack:auto ones always count as idle
+ *                                 and share their messages round-robin;
+ *                                 round-robin: the next subscriber below its cap
+ *   stomp.queue.maxBacklog      - messages a queue keeps for busy or missing subscribers; sends
+ *                                 beyond that are dropped (default 100000)
+ *   stomp.queue.maxRedeliveries - deliveries after the first before a message is dropped (default 10)
+ *
+ * A queue belongs to one node: cluster peers are not sent its messages, as each node would hand
+ * them out again. The methods of a queue are synchronized on it.
+ */
+class QueueDestination {
+
+    static final String PREFIX = "/queue/";
+
+    private static final boolean ROUND_ROBIN = "round-robin".equals(System.getProperty("stomp.queue.dispatch"));
+    private static final int MAX_BACKLOG = Integer.getInteger("stomp.queue.maxBacklog", 100000);
+    private static final int MAX_REDELIVERIES = Integer.getInteger("stomp.queue.maxRedeliveries", 10);
+
+    private static final ConcurrentHashMap<String, QueueDestination> queues = new ConcurrentHashMap<>(); // destination -> queue
+    private static final AtomicLong deliveryIds = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+
+    enum AckMode {
+        AUTO, CLIENT, CLIENT_INDIVIDUAL;
+
+        /**
+         * @return the mode of a SUBSCRIBE ack header, or null if it is not one
+         */
+        static AckMode of(String header) {
+            if (header == null || header.equals("auto")) return AUTO;
+            if (header.equals("client")) return CLIENT;
+            if (header.equals("client-individual")) return CLIENT_INDIVIDUAL;
+            return null;
+        }
+    }
+
+    static class Message {
+        final String body;
+        final String contentType;
+        final boolean rawBody;
+        int deliveries = 0;
+
+        Message(String body, String contentType, boolean rawBody) {
+            this.body = body;
+            this.contentType = contentType;
+            this.rawBody = rawBody;
+        }
+    }
+
+    private static class Subscriber {
+        final int connId;
+        final String subId;
+        final AckMode ackMode;
+        final int prefetch; // 0 for no cap
+        final LinkedHashMap<String, Message> unacked = new LinkedHashMap<>(); // ack id -> message, in delivery order
+
+        Subscriber(int connId, String subId, AckMode ackMode, int prefetch) {
+            this.connId = connId;
+            this.subId = subId;
+            this.ackMode = ackMode;
+            this.prefetch = prefetch;
+        }
+
+        boolean hasRoom() {
+            return prefetch <= 0 || unacked.size() < prefetch;
+        }
+    }
+
+    private final String dest;
+    private final ArrayDeque<Message> backlog = new ArrayDeque<>();
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private int next = 0; // the subscriber round-robin starts from
+
+    private QueueDestination(String dest) {
+        this.dest = dest;
+    }
+
+    static boolean isQueue(String dest) {
+        return dest.startsWith(PREFIX);
+    }
+
+    static QueueDestination of(String dest) {
+        return queues.computeIfAbsent(dest, QueueDestination::new);
+    }
+
+    /**
+     * @return the queue, or null if nothing was sent to or subscribed at dest
+     */
+    static QueueDestination existing(String dest) {
+        return queues.get(dest);
+    }
+
+    /**
+     * @return the subscription id an ack id was made for; ack ids are the delivery and the
+     *         subscription id joined by '-'
+     */
+    static String subscriptionOf(String ackId) {
+        int dash = ackId.indexOf('-');
+        return dash < 0 ? null : ackId.substring(dash + 1);
+    }
+
+    static long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @param connections null while no client connected yet, then the message waits
+     */
+    synchronized void send(Connections<String> connections, Message message) {
+        if (backlog.size() >= MAX_BACKLOG) {
+            dropped.incrementAndGet();
+            return;
+        }
+        backlog.addLast(message);
+        dispatch(connections);
+    }
+
+    synchronized void subscribe(Connections<String> connections, int connId, String subId, AckMode ackMode, int prefetch) {
+        unsubscribe(connections, connId, subId); // a subscription id that is reused starts over
+        subscribers.add(new Subscriber(connId, subId, ackMode, prefetch));
+        dispatch(connections);
+    }
+
+    synchronized void unsubscribe(Connections<String> connections, int connId, String subId) {
+        for (Iterator<Subscriber> it = subscribers.iterator(); it.hasNext(); ) {
+            Subscriber s = it.next();
+            if (s.connId == connId && s.subId.equals(subId)) {
+                it.remove();
+                requeue(s.unacked.values());
+                dispatch(connections);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Settles a delivery: ACK takes it (with ack:client also every earlier unacked one of the
+     * subscription), NACK puts it back for another delivery.
+     * @return false if the ack id is not in flight, e.g. its message was put back already
+     */
+    synchronized boolean ack(Connections<String> connections, int connId, String ackId, boolean accepted) {
+        Subscriber s = find(connId, subscriptionOf(ackId));
+        if (s == null || !s.unacked.containsKey(ackId))
+            return false;
+
+        if (accepted && s.ackMode == AckMode.CLIENT) {
+            for (Iterator<String> it = s.unacked.keySet().iterator(); it.hasNext(); ) {
+                String id = it.next();
+                it.remove();
+                if (id.equals(ackId))
+                    break;
+            }
+        } else {
+            Message message = s.unacked.remove(ackId);
+            if (!accepted)
+                requeue(Collections.singletonList(message));
+        }
+        dispatch(connections);
+        return true;
+    }
+
+    synchronized int getBacklog() {
+        return backlog.size();
+    }
+
+    private Subscriber find(int connId, String subId) {
+        for (Subscriber s : subscribers) {
+            if (s.connId == connId && s.subId.equals(subId))
+                return s;
+        }
+        return null;
+    }
+
+    /**
+     * Hands out waiting messages while some subscriber has room.
+     */
+    private void dispatch(Connections<String> connections) {
+        if (connections == null)
+            return;
+
+        while (!backlog.isEmpty()) {
+            Subscriber s = pick();
+            if (s == null) {
+                if (dropDisconnected(connections))
+                    continue; // the messages they held may go to the others
+                return;
+            }
+
+            Message message = backlog.peekFirst();
+            String ackId = s.ackMode == AckMode.AUTO ? null : deliveryIds.incrementAndGet() + "-" + s.subId;
+            if (!StompMessagingProtocolImpl.deliverQueued(connections, s.connId, s.subId, dest, message, ackId)) {
+                removeSubscriber(s); // its connection is gone
+                continue;
+            }
+            backlog.pollFirst();
+            message.deliveries++;
+            if (ackId != null)
+                s.unacked.put(ackId, message);
+        }
+    }
+
+    /**
+     * @return the subscriber the next message goes to, or null if none has room. An ack:auto
+     *         subscriber has nothing in flight, so it wins over any that has unacked messages.
+     */
+    private Subscriber pick() {
+        int n = subscribers.size();
+        Subscriber best = null;
+        int bestIndex = -1;
+        for (int i = 0; i < n; i++) {
+            int index = (next + i) % n;
+            Subscriber s = subscribers.get(index);
+            if (!s.hasRoom())
+                continue;
+            if (best == null || s.unacked.size() < best.unacked.size()) {
+                best = s;
+                bestIndex = index;
+                if (ROUND_ROBIN)
+                    break;
+            }
+        }
+        if (best != null)
+            next = (bestIndex + 1) % n;
+        return best;
+    }
+
+    /**
+     * Removes subscribers whose client left without DISCONNECT; a full subscriber gets no sends
+     * that would tell.
+     * @return true if there were any
+     */
+    private boolean dropDisconnected(Connections<String> connections) {
+        boolean removed = false;
+        for (Subscriber s : new ArrayList<>(subscribers)) {
+            if (!connections.isConnected(s.connId)) {
+                removeSubscriber(s);
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    private void removeSubscriber(Subscriber s) {
+        subscribers.remove(s);
+        requeue(s.unacked.values());
+    }
+
+    /**
+     * Puts messages back at the head of the queue in their order, dropping those delivered too often.
+     */
+    private void requeue(Collection<Message> messages) {
+        List<Message> list = new ArrayList<>(messages);
+        for (int i = list.size() - 1; i >= 0; i--) {
+            Message message = list.get(i);
+            if (message.deliveries > MAX_REDELIVERIES) {
+                dropped.incrementAndGet();
+                continue;
+            }
+            backlog.addFirst(message);
+        }
+    }
+}
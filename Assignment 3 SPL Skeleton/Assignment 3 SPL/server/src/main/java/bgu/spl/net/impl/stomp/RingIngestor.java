@@ -0,0 +1,143 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.api.MessageTooLargeException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes the SEND frames a local producer writes into an ingestion ring (see IngestRing and
+ * RingProducer), through the same delivery as a client's SEND. One thread polls the ring: it spins
+ * briefly when the ring runs dry and then sleeps for the idle interval between polls.
+ *
+ * Configured with system properties:
+ *   stomp.ring.file       - path of the ring, e.g. on /dev/shm; no ring unless set
+ *   stomp.ring.capacity   - bytes of frames, used if the broker creates the ring (default 8M)
+ *   stomp.ring.idleMicros - how long the poller sleeps while the ring is empty (default 50)
+ *
+ * Frames from the ring have no client session: they are not authenticated, rate limited or
+ * answered with receipts. Whoever may write the file may publish.
+ */
+class RingIngestor {
+
+    private static final int SPINS = 1000; // empty polls before the poller sleeps
+    private static final long IDLE_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("stomp.ring.idleMicros", 50));
+
+    private static volatile RingIngestor current; // null unless a ring is configured
+
+    private final IngestRing ring;
+    private final ByteBuffer reader; // a view of the ring, its window is moved to each record
+    private final StompMessageEncoderDecoder decoder = new StompMessageEncoderDecoder();
+    private final AtomicLong ingested = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private RingIngestor(IngestRing ring) {
+        this.ring = ring;
+        this.reader = ring.buffer().duplicate();
+    }
+
+    static RingIngestor current() {
+        return current;
+    }
+
+    /**
+     * Starts polling if stomp.ring.file is set.
+     */
+    static void startFromSystemProperties() throws IOException {
+        String file = System.getProperty("stomp.ring.file");
+        if (file == null)
+            return;
+
+        IngestRing ring = IngestRing.open(Paths.get(file),
+                Integer.getInteger("stomp.ring.capacity", RingProducer.DEFAULT_CAPACITY));
+        RingIngestor ingestor = new RingIngestor(ring);
+        Thread poller = new Thread(ingestor::pollLoop, "ring-ingestor");
+        poller.setDaemon(true);
+        poller.start();
+        current = ingestor;
+        System.out.println("Ingesting from " + file + " (" + ring.capacity() + " bytes)");
+    }
+
+    private void pollLoop() {
+        long consumer = ring.consumerSequence(); // frames left by an earlier run are published too
+        int idle = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            long producer = ring.producerSequence();
+            if (producer == consumer) {
+                if (++idle > SPINS)
+                    LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+            idle = 0;
+
+            long published = consumer;
+            while (consumer < producer) {
+                consumer = consume(consumer, producer);
+                if (consumer - published >= ring.capacity() / 4) { // let the producer go on while we work
+                    ring.publishConsumerSequence(consumer);
+                    published = consumer;
+                }
+            }
+            ring.publishConsumerSequence(consumer);
+        }
+    }
+
+    /**
+     * Publishes the record at seq.
+     * @return the sequence of the next record
+     */
+    private long consume(long seq, long producer) {
+        int offset = ring.offset(seq);
+        int start = IngestRing.dataStart();
+        int length = ring.buffer().getInt(start + offset);
+        if (length == IngestRing.PADDING)
+            return seq + ring.capacity() - offset;
+
+        int size = IngestRing.recordSize(Math.max(length, 0));
+        if (length <= 0 || offset + size > ring.capacity() || seq + size > producer) {
+            // the producer does not follow the layout, nothing after this can be trusted
+            System.err.println("Ingestion ring is corrupt at " + seq + ", skipping to " + producer);
+            rejected.incrementAndGet();
+            return producer;
+        }
+
+        reader.limit(start + offset + 4 + length);
+        reader.position(start + offset + 4);
+        if (reader.get(reader.limit() - 1) != 0) {
+            rejected.incrementAndGet(); // a frame that does not end would swallow the next one
+            return seq + size;
+        }
+        while (reader.hasRemaining()) {
+            String message;
+            try {
+                message = decoder.decodeNext(reader); // copies, the record may be reused once we return
+            } catch (MessageTooLargeException e) {
+                rejected.incrementAndGet();
+                System.err.println("Ingestion ring frame rejected: " + e.getMessage());
+                continue;
+            }
+            if (message == null)
+                continue;
+            try {
+                StompMessagingProtocolImpl.publishIngested(message);
+                ingested.incrementAndGet();
+            } catch (RuntimeException e) {
+                rejected.incrementAndGet();
+                System.err.println("Ingestion ring frame rejected: " + e.getMessage());
+            }
+        }
+        return seq + size;
+    }
+
+    long getIngested() {
+        return ingested.get();
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+}
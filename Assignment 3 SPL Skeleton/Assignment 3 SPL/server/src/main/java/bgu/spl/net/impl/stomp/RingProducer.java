@@ -0,0 +1,129 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes SEND frames through an ingestion ring (see IngestRing), for a feed running on the same
+ * host as a broker started with stomp.ring.file. The frames go to subscribers the way a client's
+ * SEND would, without a socket in between:
+ *
+ *     try (RingProducer ring = RingProducer.open("/dev/shm/stomp.ring")) {
+ *         ring.send("/germany_spain", eventBody);
+ *     }
+ *
+ * A ring has a single producer: only one process may write to it at a time. Within that process
+ * the methods may be called from any thread.
+ */
+public final class RingProducer implements Closeable {
+
+    public static final int DEFAULT_CAPACITY = 1 << 23; // 8M
+
+    private final IngestRing ring;
+    private final MappedByteBuffer buf;
+    private final ByteBuffer writer; // for bulk puts, its position is moved to each record
+    private long producer; // the next record's sequence
+    private long consumerCache; // the consumer sequence last seen, it only grows
+
+    private RingProducer(IngestRing ring) {
+        this.ring = ring;
+        this.buf = ring.buffer();
+        this.writer = buf.duplicate();
+        this.producer = ring.producerSequence();
+        this.consumerCache = ring.consumerSequence();
+    }
+
+    /**
+     * Opens the ring at path, creating it with DEFAULT_CAPACITY if the broker has not yet.
+     */
+    public static RingProducer open(String path) throws IOException {
+        return open(path, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity bytes of frames the ring holds, used only if the ring is created
+     */
+    public static RingProducer open(String path, int capacity) throws IOException {
+        return new RingProducer(IngestRing.open(Paths.get(path), capacity));
+    }
+
+    /**
+     * Publishes body to destination, waiting while the ring is full.
+     */
+    public void send(String destination, String body) throws InterruptedException {
+        sendFrame(frame(destination, body));
+    }
+
+    /**
+     * Publishes a complete frame (any SEND the broker accepts from a client, e.g. a batch SEND),
+     * waiting while the ring is full.
+     */
+    public void sendFrame(byte[] frame) throws InterruptedException {
+        long idleNanos = 1_000;
+        while (!offerFrame(frame)) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            LockSupport.parkNanos(idleNanos);
+            idleNanos = Math.min(idleNanos * 2, 1_000_000);
+        }
+    }
+
+    /**
+     * @return false if the ring is full
+     */
+    public boolean offer(String destination, String body) {
+        return offerFrame(frame(destination, body));
+    }
+
+    /**
+     * @param frame a SEND frame ending with its NUL
+     * @return false if the ring is full
+     * @throws IllegalArgumentException if frame does not end with NUL or can never fit
+     */
+    public synchronized boolean offerFrame(byte[] frame) {
+        if (frame.length == 0 || frame[frame.length - 1] != 0)
+            throw new IllegalArgumentException("a frame ends with NUL");
+        int size = IngestRing.recordSize(frame.length);
+        if (size > ring.capacity() / 2)
+            throw new IllegalArgumentException("frame of " + frame.length + " bytes does not fit a ring of " + ring.capacity());
+
+        int offset = ring.offset(producer);
+        int skip = ring.capacity() - offset < size ? ring.capacity() - offset : 0; // wrap to the start
+        if (!hasRoom(skip + size))
+            return false;
+
+        int start = IngestRing.dataStart();
+        if (skip > 0) {
+            buf.putInt(start + offset, IngestRing.PADDING);
+            offset = 0;
+        }
+        buf.putInt(start + offset, frame.length);
+        writer.position(start + offset + 4);
+        writer.put(frame);
+
+        producer += skip + size;
+        ring.publishProducerSequence(producer);
+        return true;
+    }
+
+    private boolean hasRoom(int bytes) {
+        if (producer + bytes - consumerCache <= ring.capacity())
+            return true;
+        consumerCache = ring.consumerSequence();
+        return producer + bytes - consumerCache <= ring.capacity();
+    }
+
+    private static byte[] frame(String destination, String body) {
+        return ("SEND\ndestination:" + destination + "\n\n" + body + "\0").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        ring.close();
+    }
+}
@@ -0,0 +1,140 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The body of a batch SEND (header batch:true), which carries many message bodies in one frame so
+ * a client reporting a whole events file pays for one frame instead of one per event. Every item
+ * is its length in bytes as decimal digits, a '\n', and then the item itself:
+ *
+ *     11\nfirst event\n 12\nsecond event\n
+ *
+ * The lengths count UTF-8 bytes, or raw bytes when the SEND has a content-length, in which case
+ * the items are delivered raw as well. Whitespace between items is ignored. Clients that CONNECT
+ * with accept-batch:true get the items of a batch back as one MESSAGE with the same body format,
+ * others get a MESSAGE per item.
+ */
+class SendBatch {
+
+    private static final int MAX_ITEMS = Integer.getInteger("stomp.batch.maxItems", 10000);
+
+    private SendBatch() {
+    }
+
+    /**
+     * @param rawBody true if the body came with a content-length, so every char is one byte; the
+     *                items are then raw too
+     * @return the items in order
+     * @throws IllegalArgumentException if the body does not follow the format
+     */
+    static List<String> parse(String body, boolean rawBody) {
+        List<String> items = new ArrayList<>();
+        Items walk = new Items(body, rawBody);
+        while (walk.next()) {
+            items.add(body.substring(walk.start, walk.end));
+        }
+        return items;
+    }
+
+    /**
+     * Counts the items parse would return without copying them, e.g. to charge a batch before it
+     * is delivered.
+     * @return the items up to the end of the body or up to the first malformed one
+     */
+    static int count(String body, boolean rawBody) {
+        Items walk = new Items(body, rawBody);
+        try {
+            while (walk.next()) {
+                // only the count is wanted
+            }
+        } catch (IllegalArgumentException e) {
+            // the ones before it count
+        }
+        return walk.count;
+    }
+
+    /**
+     * @param rawBody true if the items are raw, so their lengths are in chars
+     */
+    static String format(List<String> items, boolean rawBody) {
+        StringBuilder sb = new StringBuilder();
+        for (String item : items) {
+            int length = rawBody ? item.length() : item.getBytes(StandardCharsets.UTF_8).length;
+            sb.append(length).append('\n').append(item).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Walks the items of a body in place, each from its length line to its last char.
+     */
+    private static class Items {
+        private final String body;
+        private final boolean rawBody;
+        private int i = 0;
+        int start; // of the current item's text
+        int end;
+        int count = 0; // items walked so far
+
+        Items(String body, boolean rawBody) {
+            this.body = body;
+            this.rawBody = rawBody;
+        }
+
+        /**
+         * Moves to the next item.
+         * @return false at the end of the body
+         * @throws IllegalArgumentException if the next item does not follow the format
+         */
+        boolean next() {
+            int n = body.length();
+            while (i < n && body.charAt(i) < 0x80 && Character.isWhitespace(body.charAt(i))) {
+                i++;
+            }
+            if (i == n) {
+                return false;
+            }
+
+            long length = 0;
+            int digits = i;
+            while (i < n && body.charAt(i) >= '0' && body.charAt(i) <= '9' && length <= Integer.MAX_VALUE) {
+                length = length * 10 + (body.charAt(i++) - '0');
+            }
+            if (i == digits || i == n || body.charAt(i) != '\n') {
+                throw new IllegalArgumentException("Batch item " + count + " has no length line");
+            }
+            i++;
+            if (count == MAX_ITEMS) {
+                throw new IllegalArgumentException("Batch has more than " + MAX_ITEMS + " items");
+            }
+
+            start = i;
+            while (length > 0 && i < n) { // the length is in bytes, of UTF-8 unless the body is raw
+                char c = body.charAt(i++);
+                if (c == 0) {
+                    throw new IllegalArgumentException("Batch item " + count + " contains a NUL"); // it becomes a text body
+                } else if (rawBody || c < 0x80) {
+                    length -= 1;
+                } else if (c < 0x800) {
+                    length -= 2;
+                } else if (Character.isHighSurrogate(c) && i < n && Character.isLowSurrogate(body.charAt(i))) {
+                    i++;
+                    length -= 4;
+                } else {
+                    length -= 3;
+                }
+            }
+            if (length > 0) {
+                throw new IllegalArgumentException("Batch item " + count + " is cut short");
+            }
+            if (length < 0) {
+                throw new IllegalArgumentException("Batch item " + count + " ends inside a character");
+            }
+            end = i;
+            count++;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.Metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limits on the SEND frames and bytes a client may publish, per connection and per
+ * user (shared by all connections of one login). Limits are off unless configured:
+ *   stomp.rateLimit.framesPerSec, stomp.rateLimit.bytesPerSec         - per connection
+ *   stomp.rateLimit.userFramesPerSec, stomp.rateLimit.userBytesPerSec - per user
+ *   stomp.rateLimit.disconnect                                        - answer with ERROR instead of pausing
+ * Every bucket holds up to one second worth of tokens, so short bursts pass untouched. A batch
+ * SEND (see SendBatch) is charged as many frames as it has items.
+ *
+ * A frame is never rejected for lack of tokens; the bucket goes into debt and admit() tells how
+ * long the client has to be paused to pay it back.
+ *
+ * A user's buckets are dropped once the user sent nothing for IDLE_NANOS: by then they are full
+ * again, so a user who comes back gets the same fresh buckets.
+ */
+class SendRateLimiter {
+
+    private static final long FRAMES_PER_SEC = Long.getLong("stomp.rateLimit.framesPerSec", 0);
+    private static final long BYTES_PER_SEC = Long.getLong("stomp.rateLimit.bytesPerSec", 0);
+    private static final long USER_FRAMES_PER_SEC = Long.getLong("stomp.rateLimit.userFramesPerSec", 0);
+    private static final long USER_BYTES_PER_SEC = Long.getLong("stomp.rateLimit.userBytesPerSec", 0);
+    static final boolean DISCONNECT = Boolean.getBoolean("stomp.rateLimit.disconnect");
+
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(10); // more than the 1s a bucket takes to refill
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private static final ConcurrentHashMap<String, UserBuckets> userBuckets = new ConcurrentHashMap<>(); // login -> buckets
+    private static final AtomicLong nextSweep = new AtomicLong(System.nanoTime() + SWEEP_INTERVAL_NANOS);
+
+    private static final AtomicLong throttledFrames = new AtomicLong(); // frames that put a client over a limit
+    private static final AtomicLong throttledConnections = new AtomicLong(); // connections throttled at least once
+    private static final AtomicLong disconnects = new AtomicLong();
+
+    static {
+        Metrics.register("rateLimit.throttledFrames", SendRateLimiter::getThrottledFrames);
+        Metrics.register("rateLimit.throttledConnections", SendRateLimiter::getThrottledConnections);
+        Metrics.register("rateLimit.disconnects", SendRateLimiter::getDisconnects);
+        Metrics.register("rateLimit.users", userBuckets::size);
+    }
+
+    private final TokenBucket frames = TokenBucket.of(FRAMES_PER_SEC);
+    private final TokenBucket bytes = TokenBucket.of(BYTES_PER_SEC);
+    private boolean throttled = false;
+
+    /**
+     * @return a limiter for a new connection, or null if no limit is configured
+     */
+    static SendRateLimiter forConnection() {
+        if (FRAMES_PER_SEC <= 0 && BYTES_PER_SEC <= 0 && USER_FRAMES_PER_SEC <= 0 && USER_BYTES_PER_SEC <= 0)
+            return null;
+        return new SendRateLimiter();
+    }
+
+    /**
+     * Charges one SEND frame of the given size.
+     * @param user the login of the connection, or null before CONNECT
+     * @param frameCount the frames the SEND counts as: 1, or the items of a batch SEND
+     * @return for how many milliseconds the connection should not be read from, 0 if it is within its limits
+     */
+    long admit(String user, int frameCount, int frameBytes) {
+        long delay = Math.max(charge(frames, frameCount), charge(bytes, frameBytes));
+        if (user != null && (USER_FRAMES_PER_SEC > 0 || USER_BYTES_PER_SEC > 0)) {
+            long now = System.nanoTime();
+            UserBuckets perUser = userBuckets.computeIfAbsent(user, k -> new UserBuckets());
+            perUser.lastUsed = now;
+            delay = Math.max(delay, Math.max(charge(perUser.frames, frameCount), charge(perUser.bytes, frameBytes)));
+            sweepIdleUsers(now);
+        }
+
+        if (delay > 0) {
+            throttledFrames.incrementAndGet();
+            if (!throttled) {
+                throttled = true;
+                throttledConnections.incrementAndGet();
+            }
+            if (DISCONNECT)
+                disconnects.incrementAndGet();
+        }
+        return delay;
+    }
+
+    static long getThrottledFrames() {
+        return throttledFrames.get();
+    }
+
+    static long getThrottledConnections() {
+        return throttledConnections.get();
+    }
+
+    static long getDisconnects() {
+        return disconnects.get();
+    }
+
+    private static long charge(TokenBucket bucket, long amount) {
+        return bucket == null ? 0 : bucket.take(amount);
+    }
+
+    /**
+     * Drops the buckets of users idle for IDLE_NANOS, at most once per SWEEP_INTERVAL_NANOS.
+     */
+    private static void sweepIdleUsers(long now) {
+        long due = nextSweep.get();
+        if (now - due < 0 || !nextSweep.compareAndSet(due, now + SWEEP_INTERVAL_NANOS))
+            return;
+        userBuckets.entrySet().removeIf(entry -> now - entry.getValue().lastUsed > IDLE_NANOS);
+    }
+
+    private static class UserBuckets {
+        final TokenBucket frames = TokenBucket.of(USER_FRAMES_PER_SEC);
+        final TokenBucket bytes = TokenBucket.of(USER_BYTES_PER_SEC);
+        volatile long lastUsed;
+    }
+
+    private static class TokenBucket {
+        private final double perNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        private TokenBucket(long perSecond) {
+            this.perNano = perSecond / 1e9;
+            this.capacity = perSecond;
+            this.tokens = capacity;
+        }
+
+        static TokenBucket of(long perSecond) {
+            return perSecond > 0 ? new TokenBucket(perSecond) : null;
+        }
+
+        /**
+         * @return milliseconds until the bucket is out of debt, 0 if it had enough tokens
+         */
+        synchronized long take(long amount) {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * perNano);
+            lastRefill = now;
+
+            tokens -= amount;
+            if (tokens >= 0)
+                return 0;
+            return (long) Math.ceil(-tokens / perNano / 1e6);
+        }
+    }
+}
@@ -1,42 +1,319 @@
 package bgu.spl.net.impl.stomp;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
+import bgu.spl.net.api.MessageTooLargeException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
+/**
+ * Frames are delimited by the null char. When a frame carries a content-length header its body is
+ * read as exactly that many bytes instead, so it may contain NUL. Such bodies are kept byte for byte
+ * as ISO-8859-1 chars and encoded back the same way, which lets binary payloads pass through the
+ * String based protocol untouched.
+ *
+ * Accumulation buffers are borrowed from a shared FrameBufferPool while a frame is being received.
+ * A frame longer than MAX_FRAME_SIZE bytes is skipped and reported with a MessageTooLargeException.
+ */
 public class StompMessageEncoderDecoder implements MessageEncoderDecoder<String> {
 
-    private byte[] bytes = new byte[1 << 10]; // start with 1k buffer
+    private static final String CONTENT_LENGTH = "content-length:";
+    private static final String CONTENT_LENGTH_LINE = "\n" + CONTENT_LENGTH;
+
+    public static final int MAX_FRAME_SIZE = Integer.getInteger("stomp.maxFrameSize", 1 << 22); // 4M
+
+    private static final FrameBufferPool POOL = new FrameBufferPool(MAX_FRAME_SIZE);
+
+    private byte[] bytes = null; // borrowed from POOL while a frame is partially received
     private int len = 0;
+    private boolean discarding = false; // skipping the rest of an oversized frame
+    private int bodyStart = -1; // index of the first body byte, -1 while still reading headers
+    private int bodyRemaining = -1; // body bytes still expected, -1 if the frame has no content-length
 
     @Override
     public String decodeNextByte(byte nextByte) {
+        if (discarding) {
+            skipByte(nextByte);
+            return null;
+        }
+
+        if (bodyRemaining > 0) {
+            if (!pushByte(nextByte)) {
+                throw tooLarge();
+            }
+            bodyRemaining--;
+            return null;
+        }
+
         // The Frame delimiter in STOMP is the null char
         if (nextByte == '\0') {
             return popString();
         }
 
-        pushByte(nextByte);
+        if (!pushByte(nextByte)) {
+            throw tooLarge();
+        }
+        if (bodyStart < 0 && nextByte == '\n' && len >= 2 && bytes[len - 2] == '\n') {
+            bodyStart = len; // blank line - the headers are complete
+            bodyRemaining = parseContentLength();
+            if (bodyRemaining > MAX_FRAME_SIZE - len) {
+                throw tooLarge();
+            }
+        }
         return null; // Frame not complete
     }
 
+    @Override
+    public String decodeNext(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (bodyRemaining > 0) {
+                // content-length body: copy the whole run without looking at the bytes
+                int n = Math.min(bodyRemaining, buffer.remaining());
+                if (discarding) {
+                    buffer.position(buffer.position() + n);
+                } else {
+                    ensureCapacity(len + n); // the declared length was checked against MAX_FRAME_SIZE
+                    buffer.get(bytes, len, n);
+                    len += n;
+                }
+                bodyRemaining -= n;
+            } else {
+                String message = decodeNextByte(buffer.get());
+                if (message != null) {
+                    return message;
+                }
+            }
+        }
+        return null;
+    }
+
     @Override
     public byte[] encode(String message) {
-        // FIX: Do NOT append "\0" here. 
+        // FIX: Do NOT append "\0" here.
         // The Protocol's Frame.toString() already appends the null terminator.
-        return message.getBytes(StandardCharsets.UTF_8);
+        int start = rawBodyStart(message);
+        if (start == message.length()) {
+            return message.getBytes(StandardCharsets.UTF_8);
+        }
+
+        byte[] head = message.substring(0, start).getBytes(StandardCharsets.UTF_8);
+        byte[] result = Arrays.copyOf(head, head.length + message.length() - start);
+        for (int i = start; i < message.length(); i++) {
+            result[head.length + i - start] = (byte) message.charAt(i);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean encodeInto(String message, ByteBuffer buffer) {
+        if (buffer.remaining() < message.length()) {
+            return false; // every char takes at least one byte
+        }
+
+        int start = buffer.position();
+        int rawStart = rawBodyStart(message);
+        if (putUtf8(message, rawStart, buffer) && putRaw(message, rawStart, buffer)) {
+            return true;
+        }
+        buffer.position(start);
+        return false;
+    }
+
+    @Override
+    public boolean isPriority(String message) {
+        // CONNECTED, RECEIPT and ERROR must not wait behind a backlog of broadcasts
+        return !message.startsWith("MESSAGE\n");
+    }
+
+    @Override
+    public Object conflationKey(String message) {
+        // the protocol only adds conflation-key to MESSAGE frames of subscriptions that asked for it
+        if (!message.startsWith("MESSAGE\n")) {
+            return null;
+        }
+        int headersEnd = message.indexOf("\n\n");
+        if (headersEnd < 0) {
+            return null;
+        }
+        String key = headerValue(message, "conflation-key", headersEnd);
+        if (key == null) {
+            return null;
+        }
+        return headerValue(message, "subscription", headersEnd) + "\n" + key;
+    }
+
+    private static String headerValue(String message, String name, int headersEnd) {
+        int at = message.indexOf("\n" + name + ":");
+        if (at < 0 || at >= headersEnd) {
+            return null;
+        }
+        int start = at + name.length() + 2;
+        int end = message.indexOf('\n', start);
+        return message.substring(start, end);
+    }
+
+    /**
+     * @return where the raw (content-length) body of the frame starts, or its length if the whole
+     * frame is UTF-8 text. Raw bodies hold one byte per char, see the class comment.
+     */
+    private static int rawBodyStart(String message) {
+        int headersEnd = message.indexOf("\n\n");
+        if (headersEnd < 0 || message.lastIndexOf(CONTENT_LENGTH_LINE, headersEnd) < 0) {
+            return message.length();
+        }
+        return headersEnd + 2;
     }
 
-    private void pushByte(byte nextByte) {
-        if (len >= bytes.length) {
-            bytes = Arrays.copyOf(bytes, len * 2);
+    private static boolean putUtf8(String s, int end, ByteBuffer buffer) {
+        for (int i = 0; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (!buffer.hasRemaining()) {
+                    return false;
+                }
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                if (buffer.remaining() < 2) {
+                    return false;
+                }
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                if (buffer.remaining() < 4) {
+                    return false;
+                }
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer.put((byte) (0xF0 | (cp >> 18)));
+                buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                if (!buffer.hasRemaining()) {
+                    return false;
+                }
+                buffer.put((byte) '?'); // unpaired surrogate, replaced as String.getBytes does
+            } else {
+                if (buffer.remaining() < 3) {
+                    return false;
+                }
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        return true;
+    }
+
+    private static boolean putRaw(String s, int start, ByteBuffer buffer) {
+        if (buffer.remaining() < s.length() - start) {
+            return false;
+        }
+        for (int i = start; i < s.length(); i++) {
+            buffer.put((byte) s.charAt(i));
+        }
+        return true;
+    }
+
+    private boolean pushByte(byte nextByte) {
+        if (!ensureCapacity(len + 1)) {
+            return false;
         }
         bytes[len++] = nextByte;
+        return true;
     }
 
-    private String popString() {
-        String result = new String(bytes, 0, len, StandardCharsets.UTF_8);
+    /**
+     * @return false if the frame would grow past MAX_FRAME_SIZE
+     */
+    private boolean ensureCapacity(int capacity) {
+        if (capacity > MAX_FRAME_SIZE) {
+            return false;
+        }
+        if (bytes == null) {
+            bytes = POOL.acquire(capacity);
+        } else if (capacity > bytes.length) {
+            byte[] bigger = POOL.acquire(Math.min(Math.max(capacity, bytes.length * 2), MAX_FRAME_SIZE));
+            System.arraycopy(bytes, 0, bigger, 0, len);
+            POOL.release(bytes);
+            bytes = bigger;
+        }
+        return true;
+    }
+
+    /**
+     * Starts skipping the rest of the current frame.
+     * @return the exception to throw
+     */
+    private MessageTooLargeException tooLarge() {
+        releaseBuffer();
+        bodyStart = -1;
+        discarding = true; // bodyRemaining still counts the content-length bytes left to skip
+        return new MessageTooLargeException(MAX_FRAME_SIZE);
+    }
+
+    private void skipByte(byte nextByte) {
+        if (bodyRemaining > 0) {
+            bodyRemaining--;
+        } else if (nextByte == '\0') {
+            discarding = false;
+            bodyRemaining = -1;
+        }
+    }
+
+    private void releaseBuffer() {
+        if (bytes != null) {
+            POOL.release(bytes);
+            bytes = null;
+        }
         len = 0;
+    }
+
+    /**
+     * @return the content-length of the frame whose headers were just read, or -1 if it has none
+     */
+    private int parseContentLength() {
+        int lineStart = 0;
+        for (int i = 0; i < bodyStart; i++) {
+            if (bytes[i] != '\n') {
+                continue;
+            }
+            if (i - lineStart > CONTENT_LENGTH.length() && startsWith(lineStart, CONTENT_LENGTH)) {
+                String value = new String(bytes, lineStart + CONTENT_LENGTH.length(),
+                        i - lineStart - CONTENT_LENGTH.length(), StandardCharsets.US_ASCII).trim();
+                try {
+                    int length = Integer.parseInt(value);
+                    return length >= 0 ? length : -1;
+                } catch (NumberFormatException e) {
+                    return -1; // malformed header - fall back to scanning for the null char
+                }
+            }
+            lineStart = i + 1;
+        }
+        return -1;
+    }
+
+    private boolean startsWith(int offset, String prefix) {
+        for (int i = 0; i < prefix.length(); i++) {
+            if (bytes[offset + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String popString() {
+        String result;
+        if (len == 0) {
+            result = "";
+        } else if (bodyRemaining >= 0) {
+            result = new String(bytes, 0, bodyStart, StandardCharsets.UTF_8)
+                    + new String(bytes, bodyStart, len - bodyStart, StandardCharsets.ISO_8859_1);
+        } else {
+            result = new String(bytes, 0, len, StandardCharsets.UTF_8);
+        }
+        releaseBuffer();
+        bodyStart = -1;
+        bodyRemaining = -1;
         return result;
     }
-}
\ No newline at end of file
+}
@@ -1,10 +1,17 @@
 package bgu.spl.net.impl.stomp;
 
+import bgu.spl.net.api.MessageTooLargeException;
 import bgu.spl.net.api.StompMessagingProtocol;
 import bgu.spl.net.srv.Connections;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -16,11 +23,37 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
     // We need the SubId to include it in the MESSAGE frame "subscription" header.
     private static final ConcurrentHashMap<String, ConcurrentHashMap<Integer, String>> topicSubscribers = new ConcurrentHashMap<>();
 
-    private boolean shouldTerminate = false;
+    // Subscriptions that asked for conflation (SUBSCRIBE conflate:true): ConnectionId -> SubscriptionIds.
+    // Their MESSAGE frames carry the conflation-key of the SEND, and a newer frame with the same key
+    // replaces an older one still waiting in the connection's outbound queue.
+    private static final ConcurrentHashMap<Integer, Set<String>> conflatingSubscriptions = new ConcurrentHashMap<>();
+
+    // Negotiated body encodings: ConnectionId -> encoding (absent when the client did not opt in)
+    private static final ConcurrentHashMap<Integer, String> connectionEncodings = new ConcurrentHashMap<>();
+
+    // Connections that CONNECTed with accept-batch:true; they get a batch SEND as one batch MESSAGE
+    private static final Set<Integer> batchConnections = ConcurrentHashMap.newKeySet();
+
+    // The server's Connections, shared by every protocol instance. Used to deliver frames forwarded by cluster peers.
+    private static volatile Connections<String> serverConnections;
+
+    // Frames a client may send before its CONNECT is answered; they are processed once it is
+    private static final int MAX_FRAMES_DURING_AUTH = Integer.getInteger("stomp.auth.maxQueuedFrames", 256);
+
+    // A report is dropped when its client has not taken a part within this time
+    private static final long REPORT_WRITE_TIMEOUT_MS = Long.getLong("stomp.report.writeTimeoutMs", 30_000);
+
+    // process() and the completion of an async login are synchronized on the instance, the
+    // login completes on a database thread
+    private volatile boolean shouldTerminate = false;
     private int connectionId;
     private Connections<String> connections;
     private boolean isConnected = false;
     private String currentUsername = null;
+    private SendRateLimiter rateLimiter = null; // null when no limit is configured
+    private boolean authPending = false; // CONNECT is waiting for the database
+    private boolean closed = false; // the connection is gone, possibly while CONNECT was pending
+    private final ArrayDeque<String> framesDuringAuth = new ArrayDeque<>();
     
     // Per-Client Subscriptions: SubscriptionId -> Topic Name
     // Used to quickly find the topic when a client sends UNSUBSCRIBE id:X
@@ -30,14 +63,28 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
     public void start(int connectionId, Connections<String> connections) {
         this.connectionId = connectionId;
         this.connections = connections;
+        serverConnections = connections;
         this.shouldTerminate = false;
         this.isConnected = false;
         this.currentUsername = null;
+        this.rateLimiter = SendRateLimiter.forConnection();
+        this.authPending = false;
+        this.closed = false;
+        this.framesDuringAuth.clear();
         this.mySubscriptions.clear();
     }
 
     @Override
-    public void process(String message) {
+    public synchronized void process(String message) {
+        if (authPending) {
+            if (framesDuringAuth.size() >= MAX_FRAMES_DURING_AUTH) {
+                sendError("too many frames", "Wait for CONNECTED before sending more frames");
+                return;
+            }
+            framesDuringAuth.add(message);
+            return;
+        }
+
         Frame frame;
         try {
             frame = Frame.parse(message);
@@ -46,6 +93,11 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             return;
         }
 
+        // charged before anything is delivered; a batch costs as many frames as it has items
+        if (rateLimiter != null && frame.command.equals("SEND") && !admitSend(frame, message)) {
+            return;
+        }
+
         switch (frame.command) {
             case "CONNECT":
             case "STOMP":
@@ -60,6 +112,12 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             case "SEND":
                 if (validateSession()) handleSend(frame);
                 break;
+            case "ACK":
+                if (validateSession()) handleAck(frame, true);
+                break;
+            case "NACK":
+                if (validateSession()) handleAck(frame, false);
+                break;
             case "DISCONNECT":
                 if (validateSession()) handleDisconnect(frame);
                 break;
@@ -68,11 +126,28 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         }
     }
 
+    @Override
+    public synchronized void messageTooLarge(MessageTooLargeException ex) {
+        // not queued behind a pending CONNECT: the client is dropped either way
+        if (!shouldTerminate)
+            sendError("frame too large", "Frames may not exceed " + ex.getMaxSize() + " bytes");
+    }
+
     @Override
     public boolean shouldTerminate() {
         return shouldTerminate;
     }
 
+    @Override
+    public synchronized void connectionClosed() {
+        closed = true; // a login still in flight is undone when it completes
+        leaveQueues(); // a worker that crashed: its unacked messages go to the others
+        // a connection that dropped without DISCONNECT or ERROR leaves nothing behind in the static maps
+        conflatingSubscriptions.remove(connectionId);
+        connectionEncodings.remove(connectionId);
+        batchConnections.remove(connectionId);
+    }
+
     // --- Command Handlers ---
 
     private void handleConnect(Frame frame) {
@@ -91,8 +166,25 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             return;
         }
 
-        boolean success = DatabaseService.validateUser(login, passcode);
+        // the worker moves on; frames arriving meanwhile are queued until the database answers
+        authPending = true;
+        String acceptEncoding = frame.headers.get("accept-encoding");
+        boolean acceptBatch = "true".equals(frame.headers.get("accept-batch"));
+        DatabaseService.validateUserAsync(login, passcode)
+                .whenComplete((success, error) -> completeConnect(login, acceptEncoding, acceptBatch, Boolean.TRUE.equals(success)));
+    }
+
+    private synchronized void completeConnect(String login, String acceptEncoding, boolean acceptBatch, boolean success) {
+        authPending = false;
+        if (shouldTerminate || closed) {
+            framesDuringAuth.clear();
+            if (success) {
+                DatabaseService.logoutUserAsync(login); // the client was dropped or left while we waited
+            }
+            return;
+        }
         if (!success) {
+            framesDuringAuth.clear();
             sendError("login failed", "Wrong password or database error");
             return;
         }
@@ -102,7 +194,22 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
 
         Frame connectedFrame = new Frame("CONNECTED");
         connectedFrame.headers.put("version", "1.2");
+
+        String encoding = BodyCompression.negotiate(acceptEncoding);
+        if (encoding != null) {
+            connectionEncodings.put(connectionId, encoding);
+            connectedFrame.headers.put("content-encoding", encoding);
+        }
+        if (acceptBatch) {
+            batchConnections.add(connectionId);
+            connectedFrame.headers.put("batch", "true");
+        }
         connections.send(connectionId, connectedFrame.toString());
+
+        while (!framesDuringAuth.isEmpty() && !shouldTerminate) {
+            process(framesDuringAuth.poll());
+        }
+        framesDuringAuth.clear();
     }
 
     private void handleSubscribe(Frame frame) {
@@ -113,20 +220,87 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             sendError("malformed frame", "Missing destination or id header");
             return;
         }
+        if (QueueDestination.isQueue(dest)) {
+            subscribeQueue(frame, dest, id);
+            return;
+        }
 
-        // 1. Add to global topic map
-        topicSubscribers.computeIfAbsent(dest, k -> new ConcurrentHashMap<>())
-                        .put(connectionId, id);
+        // 1. Add to global topic map. A subscriber that asked for the game state gets it first;
+        // publishing is locked out meanwhile, so no event is both missed and left out of it.
+        GameState game = "true".equals(frame.headers.get("snapshot")) ? GameState.of(dest) : null;
+        if (game == null) {
+            topicSubscribers.computeIfAbsent(dest, k -> new ConcurrentHashMap<>())
+                            .put(connectionId, id);
+        } else {
+            synchronized (game) {
+                topicSubscribers.computeIfAbsent(dest, k -> new ConcurrentHashMap<>())
+                                .put(connectionId, id);
+                sendSnapshot(game, dest, id);
+            }
+        }
         
         // 2. Add to local map (for Unsubscribe)
         mySubscriptions.put(id, dest);
+        if ("true".equals(frame.headers.get("conflate"))) {
+            conflatingSubscriptions.computeIfAbsent(connectionId, k -> ConcurrentHashMap.newKeySet()).add(id);
+        } else {
+            forgetConflation(id);
+        }
+        interestChanged(dest);
+
+        String receiptId = frame.headers.get("receipt");
+        if (receiptId != null) {
+            Frame receipt = new Frame("RECEIPT");
+            receipt.headers.put("receipt-id", receiptId);
+            connections.send(connectionId, receipt.toString());
+        }
+    }
+
+    /**
+     * Joins the consumers of a queue. The ack header (auto, client or client-individual) decides
+     * whether deliveries are in flight until ACKed, prefetch caps how many may be.
+     */
+    private void subscribeQueue(Frame frame, String dest, String id) {
+        QueueDestination.AckMode ackMode = QueueDestination.AckMode.of(frame.headers.get("ack"));
+        int prefetch;
+        try {
+            prefetch = Integer.parseInt(frame.headers.getOrDefault("prefetch", "0"));
+        } catch (NumberFormatException e) {
+            prefetch = -1;
+        }
+        if (ackMode == null || prefetch < 0) {
+            sendError("malformed frame", "Invalid ack or prefetch header");
+            return;
+        }
+
+        String previous = mySubscriptions.put(id, dest);
+        if (previous != null && !previous.equals(dest)) {
+            leave(id, previous);
+        }
+        forgetConflation(id);
 
+        // the RECEIPT goes first, a waiting message may be handed out right away
         String receiptId = frame.headers.get("receipt");
         if (receiptId != null) {
             Frame receipt = new Frame("RECEIPT");
             receipt.headers.put("receipt-id", receiptId);
             connections.send(connectionId, receipt.toString());
         }
+        QueueDestination.of(dest).subscribe(connections, connectionId, id, ackMode, prefetch);
+    }
+
+    private void sendSnapshot(GameState game, String dest, String subId) {
+        String snapshot = game.snapshot();
+        if (snapshot == null) {
+            return;
+        }
+        Frame msgFrame = new Frame("MESSAGE");
+        msgFrame.headers.put("subscription", subId);
+        msgFrame.headers.put("message-id", String.valueOf(globalMessageId.getAndIncrement()));
+        msgFrame.headers.put("destination", dest);
+        msgFrame.headers.put("snapshot", "true");
+        setBody(msgFrame, snapshot, connectionEncodings.get(connectionId), new HashMap<>());
+        connections.send(connectionId, msgFrame.toString());
     }
 
     private void handleUnsubscribe(Frame frame) {
@@ -138,11 +312,9 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
 
         // Find which topic this subscription ID belongs to
         String topic = mySubscriptions.remove(id);
+        forgetConflation(id);
         if (topic != null) {
-            // Remove from global map
-            if (topicSubscribers.containsKey(topic)) {
-                topicSubscribers.get(topic).remove(connectionId);
-            }
+            leave(id, topic);
         }
 
         String receiptId = frame.headers.get("receipt");
@@ -162,54 +334,116 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
 
         // FEATURE: Report Generation
         if (frame.body != null && frame.body.trim().equals("report")) {
-            String report = DatabaseService.generateReport();
-            
-            Frame reportMsg = new Frame("MESSAGE");
-            reportMsg.headers.put("subscription", "0"); // Direct message
-            reportMsg.headers.put("destination", dest);
-            reportMsg.headers.put("message-id", String.valueOf(globalMessageId.getAndIncrement()));
-            reportMsg.body = report;
-            
-            connections.send(connectionId, reportMsg.toString());
+            // sent from the database thread as it pages through the tables, in parts of bounded size;
+            // every part but the last carries report-continues:true
+            String reportId = String.valueOf(globalMessageId.getAndIncrement());
+            String encoding = connectionEncodings.get(connectionId);
+            DatabaseService.streamReportAsync(currentUsername, (index, text, last) -> {
+                Frame reportMsg = new Frame("MESSAGE");
+                reportMsg.headers.put("subscription", "0"); // Direct message
+                reportMsg.headers.put("destination", dest);
+                reportMsg.headers.put("message-id", String.valueOf(globalMessageId.getAndIncrement()));
+                reportMsg.headers.put("report-id", reportId);
+                reportMsg.headers.put("report-part", String.valueOf(index));
+                reportMsg.headers.put("report-continues", String.valueOf(!last));
+                setBody(reportMsg, text, encoding, new HashMap<>());
+
+                if (!connections.send(connectionId, reportMsg.toString()))
+                    return false; // the client is gone
+                // the next page is only read once the client has taken most of this part
+                return last || connections.awaitWritable(connectionId, REPORT_WRITE_TIMEOUT_MS);
+            });
             return;
         }
 
         // FEATURE: File Upload Tracking
         String filename = frame.headers.get("file-name");
         if (filename != null) {
-            DatabaseService.addFile(currentUsername, filename);
+            DatabaseService.addFileAsync(currentUsername, filename);
         }
 
-        // BROADCAST LOGIC (FIXED)
-        ConcurrentHashMap<Integer, String> subscribers = topicSubscribers.get(dest);
-        if (subscribers != null) {
-            for (Map.Entry<Integer, String> entry : subscribers.entrySet()) {
-                Integer targetConnId = entry.getKey();
-                String subId = entry.getValue();
-
-                Frame msgFrame = new Frame("MESSAGE");
-                msgFrame.headers.put("subscription", subId); // Must match recipient's sub ID
-                msgFrame.headers.put("message-id", String.valueOf(globalMessageId.getAndIncrement()));
-                msgFrame.headers.put("destination", dest);
-                msgFrame.body = frame.body;
-
-                connections.send(targetConnId, msgFrame.toString());
+        try {
+            publish(connections, dest, frame);
+        } catch (IllegalArgumentException e) {
+            sendError("malformed frame", e.getMessage());
+        }
+    }
+
+    /**
+     * Publishes a SEND received from a ring (see RingIngestor), which has no client session:
+     * no receipt, report, file tracking or rate limit applies.
+     * @throws IllegalArgumentException if the frame is not a SEND with a destination
+     */
+    static void publishIngested(String message) {
+        Frame frame = Frame.parse(message);
+        String dest = frame.headers.get("destination");
+        if (!frame.command.equals("SEND") || dest == null) {
+            throw new IllegalArgumentException("Not a SEND with a destination");
+        }
+        publish(serverConnections, dest, frame);
+    }
+
+    /**
+     * Delivers a SEND's body to the subscribers of dest here and on the cluster's peers.
+     * @param connections null before the first client connected, then only peers get it
+     * @throws IllegalArgumentException if the body of a batch SEND is malformed
+     */
+    private static void publish(Connections<String> connections, String dest, Frame frame) {
+        // content-length bodies are raw bytes (see StompMessageEncoderDecoder) and are passed through as is
+        boolean rawBody = frame.headers.containsKey("content-length");
+        String contentType = frame.headers.get("content-type");
+
+        if (QueueDestination.isQueue(dest)) {
+            // one consumer of this node gets it; peers are not sent it, they would hand it out again
+            QueueDestination queue = QueueDestination.of(dest);
+            if ("true".equals(frame.headers.get("batch"))) {
+                for (String item : SendBatch.parse(frame.body == null ? "" : frame.body, rawBody)) {
+                    queue.send(connections, new QueueDestination.Message(item, contentType, rawBody));
+                }
+            } else {
+                queue.send(connections, new QueueDestination.Message(frame.body, contentType, rawBody));
             }
+            return;
+        }
+
+        if ("true".equals(frame.headers.get("batch"))) {
+            List<String> items = SendBatch.parse(frame.body == null ? "" : frame.body, rawBody);
+            if (connections != null) {
+                deliverBatch(connections, dest, items, contentType, rawBody);
+            }
+
+            ClusterNode cluster = ClusterNode.current();
+            if (cluster != null) {
+                for (String item : items) { // peers deliver them one by one
+                    cluster.forward(dest, item, contentType, rawBody, null);
+                }
+            }
+            return;
+        }
+        String conflationKey = frame.headers.get("conflation-key"); // e.g. the team and field of a game update
+
+        // BROADCAST LOGIC (FIXED)
+        if (connections != null) {
+            deliverLocal(connections, dest, frame.body, contentType, rawBody, conflationKey);
+        }
+
+        ClusterNode cluster = ClusterNode.current();
+        if (cluster != null) {
+            cluster.forward(dest, frame.body, contentType, rawBody, conflationKey);
         }
     }
 
     private void handleDisconnect(Frame frame) {
         if (currentUsername != null) {
-            DatabaseService.logoutUser(currentUsername);
+            DatabaseService.logoutUserAsync(currentUsername);
         }
 
         // Remove all subscriptions for this user
-        for (String topic : mySubscriptions.values()) {
-            if (topicSubscribers.containsKey(topic)) {
-                topicSubscribers.get(topic).remove(connectionId);
-            }
+        for (Map.Entry<String, String> subscription : mySubscriptions.entrySet()) {
+            leave(subscription.getKey(), subscription.getValue());
         }
         mySubscriptions.clear();
+        conflatingSubscriptions.remove(connectionId);
 
         String receiptId = frame.headers.get("receipt");
         if (receiptId != null) {
@@ -218,13 +452,341 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             connections.send(connectionId, receipt.toString());
         }
 
+        connectionEncodings.remove(connectionId);
+        batchConnections.remove(connectionId);
         this.isConnected = false;
         this.shouldTerminate = true;
         connections.disconnect(connectionId);
     }
 
+    /**
+     * Settles a queue delivery. An id that is not in flight, e.g. of a message already handed to
+     * another consumer, is ignored.
+     */
+    private void handleAck(Frame frame, boolean accepted) {
+        String id = frame.headers.get("id");
+        if (id == null) {
+            sendError("malformed frame", "Missing id header");
+            return;
+        }
+
+        String subId = QueueDestination.subscriptionOf(id);
+        String dest = subId == null ? null : mySubscriptions.get(subId);
+        QueueDestination queue = dest == null ? null : QueueDestination.existing(dest);
+        if (queue != null) {
+            queue.ack(connections, connectionId, id, accepted);
+        }
+
+        String receiptId = frame.headers.get("receipt");
+        if (receiptId != null) {
+            Frame receipt = new Frame("RECEIPT");
+            receipt.headers.put("receipt-id", receiptId);
+            connections.send(connectionId, receipt.toString());
+        }
+    }
+
+    /**
+     * Removes subscription subId of dest from the global maps; a queue hands its unacked messages
+     * to the other consumers.
+     */
+    private void leave(String subId, String dest) {
+        if (QueueDestination.isQueue(dest)) {
+            QueueDestination queue = QueueDestination.existing(dest);
+            if (queue != null) {
+                queue.unsubscribe(connections, connectionId, subId);
+            }
+            return;
+        }
+        // Remove from global map
+        if (topicSubscribers.containsKey(dest)) {
+            topicSubscribers.get(dest).remove(connectionId);
+        }
+        interestChanged(dest);
+    }
+
+    private void leaveQueues() {
+        for (Iterator<Map.Entry<String, String>> it = mySubscriptions.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, String> subscription = it.next();
+            if (QueueDestination.isQueue(subscription.getValue())) {
+                leave(subscription.getKey(), subscription.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    // --- Delivery ---
+
+    /**
+     * Sends a published body to every subscriber of dest connected to this server, and folds game
+     * events into the destination's GameState. Large destinations are handed to FanOut and
+     * delivered in parallel after this returns.
+     * @param rawBody true if the body came with a content-length and must be passed through as is
+     * @param conflationKey the conflation-key of the SEND, or null
+     */
+    static void deliverLocal(Connections<String> connections, String dest, String body, String contentType, boolean rawBody,
+                             String conflationKey) {
+        GameState game = rawBody ? null : GameState.forEvent(dest, body);
+        if (game == null) {
+            deliverToSubscribers(connections, dest, body, contentType, rawBody, conflationKey);
+            return;
+        }
+        synchronized (game) { // see handleSubscribe
+            game.apply(body);
+            deliverToSubscribers(connections, dest, body, contentType, rawBody, conflationKey);
+        }
+    }
+
+    private static void deliverToSubscribers(Connections<String> connections, String dest, String body, String contentType,
+                                             boolean rawBody, String conflationKey) {
+        ConcurrentHashMap<Integer, String> subscribers = topicSubscribers.get(dest);
+        if (subscribers == null) {
+            return;
+        }
+
+        FanOut.Delivery delivery = (targetConnId, subId, compressedBodies) ->
+                deliverTo(connections, targetConnId, subId, dest, body, contentType, rawBody, conflationKey, compressedBodies);
+        if (FanOut.submit(dest, subscribers, delivery)) {
+            return;
+        }
+
+        Map<String, String> compressedBodies = new HashMap<>(); // each body is compressed once per encoding
+        for (Map.Entry<Integer, String> entry : subscribers.entrySet()) {
+            delivery.deliver(entry.getKey(), entry.getValue(), compressedBodies);
+        }
+    }
+
+    /**
+     * Sends the items of a batch SEND to every subscriber of dest connected to this server, in
+     * order: as one batch MESSAGE to connections that accept batches, as a MESSAGE per item to the
+     * others (which their connection handler coalesces into few writes).
+     * @param rawBody true if the items came in a content-length body and must be passed through as is
+     */
+    static void deliverBatch(Connections<String> connections, String dest, List<String> items, String contentType,
+                             boolean rawBody) {
+        GameState game = null;
+        for (int i = 0; i < items.size() && game == null && !rawBody; i++) {
+            game = GameState.forEvent(dest, items.get(i));
+        }
+        if (game == null) {
+            deliverBatchToSubscribers(connections, dest, items, contentType, rawBody);
+            return;
+        }
+        synchronized (game) { // see handleSubscribe
+            for (String item : items) {
+                if (GameState.forEvent(dest, item) != null) {
+                    game.apply(item);
+                }
+            }
+            deliverBatchToSubscribers(connections, dest, items, contentType, rawBody);
+        }
+    }
+
+    private static void deliverBatchToSubscribers(Connections<String> connections, String dest, List<String> items,
+                                                  String contentType, boolean rawBody) {
+        ConcurrentHashMap<Integer, String> subscribers = topicSubscribers.get(dest);
+        if (subscribers == null || items.isEmpty()) {
+            return;
+        }
+
+        // each body is compressed once per encoding; FanOut lanes share these, hence synchronized
+        List<Map<String, String>> compressedItems = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            compressedItems.add(Collections.synchronizedMap(new HashMap<>()));
+        }
+        Map<String, String> compressedBatch = Collections.synchronizedMap(new HashMap<>());
+        String[] batchBody = new String[1]; // formatted on first use
+
+        FanOut.Delivery delivery = (targetConnId, subId, laneCache) -> {
+            if (!batchConnections.contains(targetConnId)) {
+                for (int i = 0; i < items.size(); i++) {
+                    deliverTo(connections, targetConnId, subId, dest, items.get(i), contentType, rawBody, null,
+                            compressedItems.get(i));
+                }
+                return;
+            }
+
+            String body;
+            synchronized (batchBody) {
+                if (batchBody[0] == null) {
+                    batchBody[0] = SendBatch.format(items, rawBody);
+                }
+                body = batchBody[0];
+            }
+            Frame msgFrame = new Frame("MESSAGE");
+            msgFrame.headers.put("subscription", subId);
+            msgFrame.headers.put("message-id", String.valueOf(globalMessageId.getAndIncrement()));
+            msgFrame.headers.put("destination", dest);
+            msgFrame.headers.put("batch", "true");
+            msgFrame.headers.put("batch-count", String.valueOf(items.size()));
+            if (contentType != null) {
+                msgFrame.headers.put("content-type", contentType);
+            }
+            if (rawBody) {
+                msgFrame.headers.put("content-length", String.valueOf(body.length()));
+                msgFrame.body = body;
+            } else {
+                setBody(msgFrame, body, connectionEncodings.get(targetConnId), compressedBatch);
+            }
+            connections.send(targetConnId, msgFrame.toString());
+        };
+        if (FanOut.submit(dest, subscribers, delivery)) {
+            return;
+        }
+
+        for (Map.Entry<Integer, String> entry : subscribers.entrySet()) {
+            delivery.deliver(entry.getKey(), entry.getValue(), null);
+        }
+    }
+
+    private static void deliverTo(Connections<String> connections, Integer targetConnId, String subId, String dest,
+                                  String body, String contentType, boolean rawBody, String conflationKey,
+                                  Map<String, String> compressedBodies) {
+        Frame msgFrame = new Frame("MESSAGE");
+        msgFrame.headers.put("subscription", subId); // Must match recipient's sub ID
+        msgFrame.headers.put("message-id", String.valueOf(globalMessageId.getAndIncrement()));
+        msgFrame.headers.put("destination", dest);
+        if (contentType != null) {
+            msgFrame.headers.put("content-type", contentType);
+        }
+        if (conflationKey != null && isConflating(targetConnId, subId)) {
+            msgFrame.headers.put("conflation-key", conflationKey);
+        }
+        if (rawBody) {
+            msgFrame.headers.put("content-length", String.valueOf(body.length()));
+            msgFrame.body = body;
+        } else {
+            setBody(msgFrame, body, connectionEncodings.get(targetConnId), compressedBodies);
+        }
+
+        connections.send(targetConnId, msgFrame.toString());
+    }
+
+    /**
+     * Sends a queue's message to the one consumer it was given to.
+     * @param ackId the id the consumer ACKs or NACKs it with, null for ack:auto
+     * @return false if the consumer's connection is gone
+     */
+    static boolean deliverQueued(Connections<String> connections, int targetConnId, String subId, String dest,
+                                 QueueDestination.Message message, String ackId) {
+        Frame msgFrame = new Frame("MESSAGE");
+        msgFrame.headers.put("subscription", subId);
+        msgFrame.headers.put("message-id", String.valueOf(globalMessageId.getAndIncrement()));
+        msgFrame.headers.put("destination", dest);
+        if (message.contentType != null) {
+            msgFrame.headers.put("content-type", message.contentType);
+        }
+        if (ackId != null) {
+            msgFrame.headers.put("ack", ackId);
+        }
+        if (message.deliveries > 0) {
+            msgFrame.headers.put("redelivered", "true");
+        }
+        if (message.rawBody) {
+            msgFrame.headers.put("content-length", String.valueOf(message.body.length()));
+            msgFrame.body = message.body;
+        } else {
+            setBody(msgFrame, message.body, connectionEncodings.get(targetConnId), new HashMap<>());
+        }
+
+        return connections.send(targetConnId, msgFrame.toString());
+    }
+
+    /**
+     * Delivers a frame a cluster peer forwarded to this node.
+     */
+    static void deliverFromPeer(String dest, String body, String contentType, boolean rawBody, String conflationKey) {
+        Connections<String> connections = serverConnections;
+        if (connections != null) {
+            deliverLocal(connections, dest, body, contentType, rawBody, conflationKey);
+        }
+    }
+
+    static boolean hasLocalSubscribers(String dest) {
+        ConcurrentHashMap<Integer, String> subscribers = topicSubscribers.get(dest);
+        return subscribers != null && !subscribers.isEmpty();
+    }
+
+    static List<String> localDestinations() {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, ConcurrentHashMap<Integer, String>> e : topicSubscribers.entrySet()) {
+            if (!e.getValue().isEmpty()) {
+                result.add(e.getKey());
+            }
+        }
+        return result;
+    }
+
+    private static boolean isConflating(Integer connId, String subId) {
+        Set<String> subscriptions = conflatingSubscriptions.get(connId);
+        return subscriptions != null && subscriptions.contains(subId);
+    }
+
+    private void forgetConflation(String subId) {
+        Set<String> subscriptions = conflatingSubscriptions.get(connectionId);
+        if (subscriptions != null) {
+            subscriptions.remove(subId);
+        }
+    }
+
+    private static void interestChanged(String dest) {
+        ClusterNode cluster = ClusterNode.current();
+        if (cluster != null) {
+            cluster.interestChanged(dest);
+        }
+    }
+
     // --- Helpers ---
 
+    /**
+     * Applies the SEND rate limits. An offending client is paused, or disconnected if so configured.
+     * @return false if the frame must be dropped because the connection was closed
+     */
+    private boolean admitSend(Frame frame, String message) {
+        int frames = 1;
+        if ("true".equals(frame.headers.get("batch")) && frame.body != null) {
+            frames = Math.max(1, SendBatch.count(frame.body, frame.headers.containsKey("content-length")));
+        }
+        long delay = rateLimiter.admit(currentUsername, frames, wireBytes(message, frame));
+        if (delay == 0) {
+            return true;
+        }
+        if (SendRateLimiter.DISCONNECT) {
+            sendError("rate limit exceeded", "Too many SEND frames, slow down");
+            return false;
+        }
+        connections.pauseReads(connectionId, delay);
+        return true;
+    }
+
+    /**
+     * @return the bytes the frame took on the wire: UTF-8, except for a content-length body, which
+     *         the decoder keeps as one char per byte
+     */
+    private static int wireBytes(String message, Frame frame) {
+        int rawStart = message.length();
+        if (frame.headers.containsKey("content-length")) {
+            int headersEnd = message.indexOf("\n\n");
+            if (headersEnd >= 0)
+                rawStart = headersEnd + 2;
+        }
+
+        int bytes = message.length() - rawStart;
+        for (int i = 0; i < rawStart; i++) {
+            char c = message.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < rawStart && Character.isLowSurrogate(message.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
     private boolean validateSession() {
         if (!isConnected) {
             sendError("access denied", "Client is not logged in");
@@ -240,12 +802,39 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         connections.send(connectionId, error.toString());
         
         if (currentUsername != null) {
-            DatabaseService.logoutUser(currentUsername);
+            DatabaseService.logoutUserAsync(currentUsername);
         }
+        leaveQueues(); // their unacked messages go to the other consumers
+        connectionEncodings.remove(connectionId);
+        batchConnections.remove(connectionId);
         shouldTerminate = true;
         connections.disconnect(connectionId);
     }
 
+    /**
+     * Sets the body of an outgoing MESSAGE, compressing it if the recipient negotiated an encoding.
+     * @param compressedBodies cache of this body's encoded forms, shared by all recipients of one send
+     */
+    private static void setBody(Frame msg, String body, String encoding, Map<String, String> compressedBodies) {
+        msg.body = body;
+        if (encoding == null || !BodyCompression.worthCompressing(body))
+            return;
+
+        String compressed;
+        if (compressedBodies.containsKey(encoding)) {
+            compressed = compressedBodies.get(encoding);
+        } else {
+            compressed = BodyCompression.compress(body, encoding);
+            compressedBodies.put(encoding, compressed); // null records that compressing did not pay off
+        }
+
+        if (compressed != null) {
+            msg.headers.put("content-encoding", encoding);
+            msg.headers.put("content-length", String.valueOf(compressed.length())); // one char per byte
+            msg.body = compressed;
+        }
+    }
+
     // Lightweight Frame Parser
     private static class Frame {
         String command;
@@ -255,10 +844,7 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         Frame(String command) { this.command = command; }
 
         static Frame parse(String msg) {
-            int nullIdx = msg.indexOf('\0');
-            String effectiveMsg = (nullIdx >= 0) ? msg.substring(0, nullIdx) : msg;
-            
-            String[] parts = effectiveMsg.split("\n\n", 2);
+            String[] parts = msg.split("\n\n", 2);
             String headerPart = parts[0];
             String bodyPart = (parts.length > 1) ? parts[1] : "";
 
@@ -273,10 +859,25 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
                     f.headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
                 }
             }
-            f.body = bodyPart;
+            f.body = trimBody(bodyPart, f.headers.get("content-length"));
             return f;
         }
 
+        // A content-length body may contain NUL, otherwise the body ends at the first null char
+        private static String trimBody(String body, String contentLength) {
+            if (contentLength != null) {
+                try {
+                    int length = Integer.parseInt(contentLength);
+                    if (length >= 0) 
+                        return body.substring(0, Math.min(length, body.length()));
+                } catch (NumberFormatException e) {
+                    // fall through to the null char
+                }
+            }
+            int nullIdx = body.indexOf('\0');
+            return (nullIdx >= 0) ? body.substring(0, nullIdx) : body;
+        }
+
         public String toString() {
             StringBuilder sb = new StringBuilder();
             sb.append(command).append('\n');
@@ -2,6 +2,8 @@ package bgu.spl.net.impl.stomp;
 
 import bgu.spl.net.srv.Server;
 
+import java.io.IOException;
+
 public class StompServer {
 
     public static void main(String[] args) {
@@ -13,6 +15,20 @@ public class StompServer {
         int port = Integer.parseInt(args[0]);
         String mode = args[1];
 
+        try {
+            ClusterNode.startFromSystemProperties();
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Error: cannot start cluster node: " + e.getMessage());
+            return;
+        }
+
+        try {
+            RingIngestor.startFromSystemProperties();
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Error: cannot open ingestion ring: " + e.getMessage());
+            return;
+        }
+
         if (mode.equals("tpc")) {
             Server.threadPerClient(
                     port,
@@ -29,5 +45,6 @@ public class StompServer {
         } else {
             System.out.println("Error: Unknown server mode. Use 'tpc' or 'reactor'.");
         }
+        FanOut.shutdown();
     }
 }
\ No newline at end of file
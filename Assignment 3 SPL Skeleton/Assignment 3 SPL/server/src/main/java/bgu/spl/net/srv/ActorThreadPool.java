@@ -8,6 +8,7 @@ import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -19,7 +20,14 @@ public class ActorThreadPool {
     private final ExecutorService threads;
 
     public ActorThreadPool(int threads) {
-        this.threads = Executors.newFixedThreadPool(threads);
+        this(threads, Executors.defaultThreadFactory());
+    }
+
+    /**
+     * @param factory creates the pool's threads, e.g. daemon threads for a pool nobody shuts down
+     */
+    public ActorThreadPool(int threads, ThreadFactory factory) {
+        this.threads = Executors.newFixedThreadPool(threads, factory);
         acts = new WeakHashMap<>();
         playingNow = ConcurrentHashMap.newKeySet();
         actsRWLock = new ReentrantReadWriteLock();
@@ -4,9 +4,17 @@ import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.StompMessagingProtocol;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
 import java.util.function.Supplier;
 
 public abstract class BaseServer<T> implements Server<T> {
@@ -17,9 +25,12 @@ public abstract class BaseServer<T> implements Server<T> {
     private final Supplier<StompMessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> encdecFactory;
     private ServerSocket sock;
+    private final List<ServerSocket> extraListeners = new CopyOnWriteArrayList<>(); // SO_REUSEPORT siblings of sock
+    private volatile ServerSocketChannel unixListener; // see ListenerOptions.UNIX_SOCKET
 
     private final ConnectionsImpl<T> connections = new ConnectionsImpl<>(); // Manages all active connections
     private final AtomicInteger connectionIdCounter = new AtomicInteger(0); // Generates unique connection IDs
+    private final AtomicLong acceptedConnections = new AtomicLong(); // for connections per second figures
 
     // ===== Constructor =====
 
@@ -31,6 +42,7 @@ public abstract class BaseServer<T> implements Server<T> {
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.encdecFactory = encdecFactory;
+        Metrics.register("tpc.acceptedConnections", acceptedConnections::get);
 		this.sock = null;
     }
 
@@ -40,35 +52,118 @@ public abstract class BaseServer<T> implements Server<T> {
     @Override
     public void serve() {
 
-        try (ServerSocket serverSock = new ServerSocket(port)) {
-			System.out.println("Server started");
-
-            this.sock = serverSock; //just to be able to close
+        try (ServerSocket serverSock = new ServerSocket()) {
+            if (ListenerOptions.UNIX_SOCKET != null)
+                unixListener = ListenerOptions.openUnixListener();
+
+            if (ListenerOptions.UNIX_SOCKET_ONLY) {
+                System.out.println("Server started");
+                unixAcceptLoop(unixListener);
+            } else {
+                boolean reusePort = ListenerOptions.ACCEPTORS > 1 && ListenerOptions.enableReusePort(serverSock);
+                serverSock.bind(new InetSocketAddress(port), ListenerOptions.BACKLOG);
+                System.out.println("Server started");
+
+                this.sock = serverSock; //just to be able to close
+
+                // extra acceptors get their own socket if the kernel can balance between them, otherwise share this one
+                for (int i = 1; i < ListenerOptions.ACCEPTORS; i++) {
+                    ServerSocket listener = reusePort ? openReusePortListener() : serverSock;
+                    Thread acceptor = new Thread(() -> acceptLoop(listener), "acceptor-" + i);
+                    acceptor.start();
+                }
+                if (unixListener != null) {
+                    ServerSocketChannel unix = unixListener;
+                    new Thread(() -> unixAcceptLoop(unix), "unix-acceptor").start();
+                }
+
+                acceptLoop(serverSock);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            for (ServerSocket listener : extraListeners) {
+                try {
+                    listener.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (unixListener != null)
+                ListenerOptions.closeUnixListener(unixListener);
+        }
 
-            while (!Thread.currentThread().isInterrupted()) {
+        System.out.println("server closed!!!");
+    }
 
-                Socket clientSock = serverSock.accept();
-                StompMessagingProtocol<T> protocol = protocolFactory.get();
-                MessageEncoderDecoder<T> encdec = encdecFactory.get();
+    public long getAcceptedConnections() {
+        return acceptedConnections.get();
+    }
 
-                BlockingConnectionHandler<T> handler = new BlockingConnectionHandler<>(clientSock, encdec, protocol);
-                int connectionId = connectionIdCounter.incrementAndGet(); // Generate a unique connection ID
+    private ServerSocket openReusePortListener() throws IOException {
+        ServerSocket listener = new ServerSocket();
+        extraListeners.add(listener);
+        ListenerOptions.enableReusePort(listener);
+        listener.bind(new InetSocketAddress(port), ListenerOptions.BACKLOG);
+        return listener;
+    }
 
-                connections.connect(connectionId, handler); // connect the handler
-                protocol.start(connectionId, connections); // Start the protocol 
+    private void acceptLoop(ServerSocket serverSock) {
+        while (!Thread.currentThread().isInterrupted() && !serverSock.isClosed()) {
+            Socket clientSock;
+            try {
+                clientSock = serverSock.accept();
+            } catch (IOException ex) {
+                if (serverSock.isClosed())
+                    return; // close() was called
+                ex.printStackTrace(); // e.g. out of file descriptors, keep accepting the others
+                continue;
+            }
+            startConnection((encdec, protocol) -> new BlockingConnectionHandler<>(clientSock, encdec, protocol));
+        }
+    }
 
-                execute(handler);
+    /**
+     * Accepts on a blocking Unix domain socket channel, see ListenerOptions.UNIX_SOCKET.
+     */
+    private void unixAcceptLoop(ServerSocketChannel listener) {
+        while (!Thread.currentThread().isInterrupted() && listener.isOpen()) {
+            SocketChannel clientChan;
+            try {
+                clientChan = listener.accept();
+            } catch (ClosedChannelException ex) {
+                return; // close() was called
+            } catch (IOException ex) {
+                ex.printStackTrace(); // e.g. out of file descriptors, keep accepting the others
+                continue;
             }
-        } catch (IOException ex) {
+            startConnection((encdec, protocol) -> new BlockingConnectionHandler<>(clientChan, encdec, protocol));
         }
+    }
 
-        System.out.println("server closed!!!");
+    private void startConnection(
+            BiFunction<MessageEncoderDecoder<T>, StompMessagingProtocol<T>, BlockingConnectionHandler<T>> handlerFactory) {
+        acceptedConnections.incrementAndGet();
+
+        StompMessagingProtocol<T> protocol = protocolFactory.get();
+        MessageEncoderDecoder<T> encdec = encdecFactory.get();
+
+        BlockingConnectionHandler<T> handler = handlerFactory.apply(encdec, protocol);
+        int connectionId = connectionIdCounter.incrementAndGet(); // Generate a unique connection ID
+
+        connections.connect(connectionId, handler); // connect the handler
+        protocol.start(connectionId, connections); // Start the protocol 
+
+        execute(handler);
     }
 
     @Override
     public void close() throws IOException {
 		if (sock != null)
 			sock.close();
+        for (ServerSocket listener : extraListeners)
+            listener.close();
+        if (unixListener != null)
+            ListenerOptions.closeUnixListener(unixListener);
     }
 
     protected abstract void execute(BlockingConnectionHandler<T>  handler);
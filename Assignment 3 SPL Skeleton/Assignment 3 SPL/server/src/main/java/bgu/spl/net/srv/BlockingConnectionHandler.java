@@ -1,30 +1,73 @@
 package bgu.spl.net.srv;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
+import bgu.spl.net.api.MessageTooLargeException;
 import bgu.spl.net.api.StompMessagingProtocol;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
     // ===== Fields =====
 
+    private static final int READ_BUFFER_SIZE = 1 << 13; //8k
+    private static final int FLUSH_THRESHOLD = 1 << 16; // 64k of unflushed bytes forces a flush
+    private static final long DRAIN_TIMEOUT_MS = 5000; // how long a closing connection waits for its writer
+    private static final Object END_OF_STREAM = new Object(); // marks the end of the outbound queue
+    private static final Object CONTROL_READY = new Object(); // wakes the writer for a frame in controlQueue
+    // a subscriber this many frames behind is disconnected instead of growing the heap without limit
+    private static final int MAX_QUEUED_FRAMES = Integer.getInteger("stomp.tpc.maxQueuedFrames", 1 << 16);
+    private static final AtomicLong overflowedConnections = new AtomicLong();
+    // awaitWritable returns once no more than this many frames wait for the writer
+    private static final int WRITABLE_FRAMES = Integer.getInteger("stomp.tpc.writableFrames", 16);
+
+    static {
+        Metrics.register("tpc.overflowedConnections", overflowedConnections::get);
+    }
+
     private final StompMessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
-    private final Socket sock;
+    private final Socket sock; // null for a Unix domain socket
+    private final SocketChannel chan; // the blocking Unix domain socket, null for TCP
     private BufferedInputStream in;
-    private BufferedOutputStream out;
     private volatile boolean connected = true;
-    private final Object writeLock = new Object();
+    private final LinkedBlockingQueue<Object> writeQueue = new LinkedBlockingQueue<>(MAX_QUEUED_FRAMES); // messages for the writer thread
+    private final ConcurrentLinkedQueue<T> controlQueue = new ConcurrentLinkedQueue<>(); // priority messages, drained first
+    private final ConcurrentHashMap<Object, Conflated<T>> conflatable = new ConcurrentHashMap<>(); // unsent slots by conflation key
+    private volatile Thread writer;
+    private volatile long readsPausedUntil = 0; // see pauseReads
+    private final AtomicReference<IOException> overflowed = new AtomicReference<>(); // why overflow() closed us
+    private final AtomicInteger writeWaiters = new AtomicInteger(); // threads in awaitWritable
+    private final Object drained = new Object(); // awaitWritable waits on it, the writer notifies it
 
 
     // ===== Constructor =====
 
     public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, StompMessagingProtocol<T> protocol) {
         this.sock = sock;
+        this.chan = null;
+        this.encdec = reader;
+        this.protocol = protocol;
+    }
+
+    /**
+     * A connection accepted on a Unix domain socket, which has no Socket view.
+     */
+    public BlockingConnectionHandler(SocketChannel chan, MessageEncoderDecoder<T> reader, StompMessagingProtocol<T> protocol) {
+        this.sock = null;
+        this.chan = chan;
         this.encdec = reader;
         this.protocol = protocol;
     }
@@ -34,20 +77,48 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
 
     @Override
     public void run() {
-        try (Socket sock = this.sock) { //just for automatic closing
+        try {
             int read;
+            byte[] chunk = new byte[READ_BUFFER_SIZE];
+            ByteBuffer buf = ByteBuffer.wrap(chunk);
 
-            in = new BufferedInputStream(sock.getInputStream());
-            out = new BufferedOutputStream(sock.getOutputStream());
+            in = new BufferedInputStream(sock != null ? sock.getInputStream() : inputStream(chan));
+            OutputStream out = sock != null ? sock.getOutputStream() : outputStream(chan);
+            writer = new Thread(() -> writeLoop(out));
+            writer.start();
 
-            while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
-                T nextMessage = encdec.decodeNextByte((byte) read);
-                if (nextMessage != null) {
-                    protocol.process(nextMessage);
+            try {
+                while (!protocol.shouldTerminate() && awaitReadPause() && (read = in.read(chunk)) >= 0) {
+                    buf.clear();
+                    buf.limit(read);
+                    while (buf.hasRemaining() && !protocol.shouldTerminate() && awaitReadPause()) {
+                        T nextMessage;
+                        try {
+                            nextMessage = encdec.decodeNext(buf);
+                        } catch (MessageTooLargeException ex) {
+                            protocol.messageTooLarge(ex);
+                            continue;
+                        }
+                        if (nextMessage != null) {
+                            protocol.process(nextMessage);
+                        }
+                    }
                 }
+            } finally {
+                drainWriter(); // let frames sent by the last process call (RECEIPT, ERROR) reach the client
             }
         } catch (IOException ex) {
-            ex.printStackTrace();
+            // once closed the read just stopped; that is only worth reporting if we were too far behind
+            IOException cause = connected ? ex : overflowed.get();
+            if (cause != null)
+                cause.printStackTrace();
+        } finally {
+            try {
+                close();
+            } catch (IOException ex) {
+                // the connection is gone either way
+            }
+            protocol.connectionClosed();
         }
 
     }
@@ -55,24 +126,251 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
     @Override
     public void close() throws IOException {
         connected = false;
-        sock.close();
+        Thread w = writer;
+        if (w != null)
+            w.interrupt();
+        wakeWriteWaiters();
+        if (sock != null)
+            sock.close();
+        else
+            chan.close();
+    }
+
+    /*
+     * Streams over a blocking channel. Those of Channels.newInputStream/newOutputStream hold the
+     * channel's blocking lock while they wait, so a blocked read would stall the writer thread.
+     */
+
+    private static InputStream inputStream(SocketChannel chan) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return len == 0 ? 0 : chan.read(ByteBuffer.wrap(b, off, len));
+            }
+        };
+    }
+
+    private static OutputStream outputStream(SocketChannel chan) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer src = ByteBuffer.wrap(b, off, len);
+                while (src.hasRemaining())
+                    chan.write(src);
+            }
+        };
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !connected;
+    }
+
+    @Override
+    public void pauseReads(long millis) {
+        // called from process() on the reader thread, which sleeps before taking the next frame
+        readsPausedUntil = Math.max(readsPausedUntil, System.currentTimeMillis() + millis);
+    }
+
+    /**
+     * Sleeps until reads are no longer paused.
+     * @return false if the connection was closed meanwhile
+     */
+    private boolean awaitReadPause() {
+        long wait;
+        while (connected && (wait = readsPausedUntil - System.currentTimeMillis()) > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return connected;
+    }
+
+    @Override
+    public boolean awaitWritable(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        writeWaiters.incrementAndGet();
+        try {
+            synchronized (drained) {
+                long wait;
+                while (connected && writeQueue.size() > WRITABLE_FRAMES) {
+                    if ((wait = deadline - System.currentTimeMillis()) <= 0)
+                        return false;
+                    drained.wait(wait);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            writeWaiters.decrementAndGet();
+        }
+        return connected;
+    }
+
+    private void wakeWriteWaiters() {
+        if (writeWaiters.get() > 0) {
+            synchronized (drained) {
+                drained.notifyAll();
+            }
+        }
     }
 
     @Override
     public void send(T msg) {
-        if (msg == null)
+        if (msg == null || !connected)
             return;
 
-        byte[] bytes = encdec.encode(msg);
-        synchronized (writeLock) {
-            if (connected && out != null) {
-                try {
-                    out.write(bytes);
-                    out.flush();
-                } catch (IOException e) {
-                    e.printStackTrace();
+        // the publisher only enqueues; encoding and the socket write happen on this connection's writer
+        Object key;
+        boolean queued = true;
+        if (encdec.isPriority(msg)) {
+            controlQueue.add(msg);
+            queued = writeQueue.offer(CONTROL_READY);
+        } else if ((key = encdec.conflationKey(msg)) != null) {
+            // replaces the message of a queued slot in place, or queues a new slot
+            boolean[] full = { false };
+            conflatable.compute(key, (k, slot) -> {
+                if (slot != null) {
+                    slot.message = msg;
+                    return slot;
+                }
+                slot = new Conflated<>(k, msg);
+                if (writeQueue.offer(slot))
+                    return slot;
+                full[0] = true;
+                return null;
+            });
+            queued = !full[0];
+        } else {
+            queued = writeQueue.offer(msg);
+        }
+
+        if (!queued)
+            overflow();
+    }
+
+    /**
+     * Drops a connection whose writer fell MAX_QUEUED_FRAMES behind, e.g. a subscriber that stopped
+     * reading. Counted once per connection; the reader reports it when its read fails.
+     */
+    private void overflow() {
+        if (!connected || !overflowed.compareAndSet(null,
+                new IOException("Disconnected a client " + MAX_QUEUED_FRAMES + " frames behind")))
+            return;
+        overflowedConnections.incrementAndGet();
+        try {
+            close();
+        } catch (IOException ex) {
+            // closing anyway
+        }
+    }
+
+    public static long getOverflowedConnections() {
+        return overflowedConnections.get();
+    }
+
+    /**
+     * Drains the outbound queue into the socket. Frames are encoded back to back into one buffer
+     * which is written out only once the queue runs empty or the buffer is full, so bursts of
+     * small frames leave in a few large writes. Priority messages are taken before anything in
+     * writeQueue, so they overtake a backlog of bulk frames.
+     */
+    @SuppressWarnings("unchecked")
+    private void writeLoop(OutputStream out) {
+        ByteBuffer buf = ByteBuffer.allocate(FLUSH_THRESHOLD);
+        try {
+            while (true) {
+                Object next = controlQueue.poll();
+                if (next == null)
+                    next = writeQueue.poll();
+                if (next == null) {
+                    flush(buf, out);
+                    next = writeQueue.take();
+                }
+
+                if (next == END_OF_STREAM)
+                    break;
+                if (writeQueue.size() <= WRITABLE_FRAMES)
+                    wakeWriteWaiters();
+                if (next == CONTROL_READY)
+                    continue; // the frame itself is polled from controlQueue
+
+                T msg;
+                if (next instanceof Conflated) {
+                    Conflated<T> slot = (Conflated<T>) next;
+                    conflatable.remove(slot.key, slot); // from here on, newer messages queue a new slot
+                    msg = slot.message;
+                } else {
+                    msg = (T) next;
+                }
+                if (!encdec.encodeInto(msg, buf)) {
+                    flush(buf, out);
+                    if (!encdec.encodeInto(msg, buf))
+                        out.write(encdec.encode(msg)); // larger than the whole buffer
                 }
             }
+            flush(buf, out);
+        } catch (InterruptedException ex) {
+            // close() was called - nothing left to deliver
+        } catch (IOException ex) {
+            if (connected)
+                ex.printStackTrace();
+        } finally {
+            connected = false;
+            writeQueue.clear();
+            controlQueue.clear();
+            conflatable.clear();
+            wakeWriteWaiters();
+        }
+    }
+
+    private static void flush(ByteBuffer buf, OutputStream out) throws IOException {
+        if (buf.position() > 0) {
+            out.write(buf.array(), 0, buf.position());
+            out.flush();
+            buf.clear();
+        }
+    }
+
+    private void drainWriter() {
+        Thread w = writer;
+        if (w == null)
+            return;
+
+        if (!writeQueue.offer(END_OF_STREAM))
+            w.interrupt(); // too far behind to drain
+        try {
+            w.join(DRAIN_TIMEOUT_MS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A queued conflatable message, which send() replaces while the writer has not reached it.
+     */
+    private static class Conflated<T> {
+        final Object key;
+        volatile T message;
+
+        Conflated(Object key, T message) {
+            this.key = key;
+            this.message = message;
         }
     }
 }
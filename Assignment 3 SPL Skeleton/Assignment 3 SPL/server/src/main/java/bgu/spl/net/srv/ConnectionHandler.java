@@ -19,4 +19,28 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * Stops reading from the client for the given time, to slow down a client that sends too fast.
+     * Data already read is still processed. Handlers that cannot pause ignore this.
+     */
+    default void pauseReads(long millis) {
+    }
+
+    /**
+     * @return true once the connection is closed, by either side
+     */
+    default boolean isClosed() {
+        return false;
+    }
+
+    /**
+     * Waits until most of what was sent to the client has been written out, so a producer of bulk
+     * output, like a report, goes no faster than the client reads. Handlers that do not queue
+     * output return at once.
+     * @return false if the connection closed or its output did not drain within the timeout
+     */
+    default boolean awaitWritable(long timeoutMillis) {
+        return !isClosed();
+    }
+
 }
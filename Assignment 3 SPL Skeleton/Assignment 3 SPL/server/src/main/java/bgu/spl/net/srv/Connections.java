@@ -9,4 +9,24 @@ public interface Connections<T> {
     void send(String channel, T msg);
 
     void disconnect(int connectionId);
+
+    /**
+     * Stops reading from the given connection for a while, see ConnectionHandler.pauseReads
+     */
+    default void pauseReads(int connectionId, long millis) {
+    }
+
+    /**
+     * @return false if the connection is gone, even if the client just dropped it without DISCONNECT
+     */
+    default boolean isConnected(int connectionId) {
+        return true;
+    }
+
+    /**
+     * Waits for the given connection's output to drain, see ConnectionHandler.awaitWritable
+     */
+    default boolean awaitWritable(int connectionId, long timeoutMillis) {
+        return isConnected(connectionId);
+    }
 }
@@ -30,6 +30,10 @@ public class ConnectionsImpl<T> implements Connections<T> {
         ConnectionHandler<T> handler = active.get(connectionId);
         if (handler == null) 
             return false;
+        if (handler.isClosed()) {
+            active.remove(connectionId, handler); // the client left without DISCONNECT
+            return false;
+        }
         
         handler.send(msg);
         return true;
@@ -48,6 +52,19 @@ public class ConnectionsImpl<T> implements Connections<T> {
             send(connId, msg);
     }
 
+    @Override
+    public void pauseReads(int connectionId, long millis) {
+        ConnectionHandler<T> handler = active.get(connectionId);
+        if (handler != null) 
+            handler.pauseReads(millis);
+    }
+
+    @Override
+    public boolean awaitWritable(int connectionId, long timeoutMillis) {
+        ConnectionHandler<T> handler = active.get(connectionId);
+        return handler != null && handler.awaitWritable(timeoutMillis);
+    }
+
     @Override
     public void disconnect(int connectionId) {
         // remove handler
@@ -114,8 +131,10 @@ public class ConnectionsImpl<T> implements Connections<T> {
         return map.get(connectionId);
     }
 
+    @Override
     public boolean isConnected(int connectionId) {
-        return active.containsKey(connectionId);
+        ConnectionHandler<T> handler = active.get(connectionId);
+        return handler != null && !handler.isClosed();
     }
 
     public java.util.List<Integer> subscribersSnapshot(String destination) {
@@ -0,0 +1,291 @@
+package bgu.spl.net.srv;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of direct buffers in a few size classes.
+ *
+ * A thread that leases and releases most of its buffers itself, such as a reactor's selector
+ * thread, may own a small cache per size class (see cacheOnThisThread), so its leases and
+ * releases never touch shared state. Every other thread, and cache overflow, uses a global free
+ * list per class: a buffer leased on one thread and released on another has to cross over
+ * anyway, and a cache on the releasing side would only fill up and never be leased from. Direct memory
+ * owned by the arena never exceeds maxDirectBytes; leases beyond that get heap buffers, which are
+ * not pooled. trim() drops free buffers that were not needed since the previous trim, so their
+ * memory goes back to the OS after a load spike (once the GC collects them).
+ *
+ * With leak detection on, every lease records where it came from, and a buffer that is collected
+ * without being released is reported with that trace.
+ */
+public class DirectBufferArena {
+
+    // ===== Fields =====
+
+    private static final int[] CLASS_SIZES = {1 << 9, 1 << 11, 1 << 13, 1 << 15}; // 512, 2k, 8k, 32k
+    private static final int THREAD_CACHE_BYTES = 1 << 18; // 256k per size class per thread
+
+    private static final DirectBufferArena SHARED = new DirectBufferArena(
+            Long.getLong("stomp.arena.maxDirectBytes", 64L << 20),
+            Boolean.getBoolean("stomp.arena.leakDetection"));
+
+    private final long maxDirectBytes;
+    private final boolean leakDetection;
+
+    private final SizeClass[] classes = new SizeClass[CLASS_SIZES.length];
+    private final ThreadLocal<CacheSlot[]> threadCaches = new ThreadLocal<>(); // null for threads without a cache
+
+    private final AtomicLong directBytes = new AtomicLong(); // owned by the arena, leased or free
+    private final AtomicLong bytesInUse = new AtomicLong(); // currently leased
+    private final AtomicLong heapFallbacks = new AtomicLong(); // leases served from the heap because of the cap
+    private final AtomicLong leaksDetected = new AtomicLong();
+
+    private final Set<LeaseRecord> leases = ConcurrentHashMap.newKeySet();
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+
+
+    // ===== Constructor =====
+
+    static {
+        Metrics.register("arena.directBytes", SHARED::getDirectBytes);
+        Metrics.register("arena.bytesInUse", SHARED::getBytesInUse);
+        Metrics.register("arena.heapFallbacks", SHARED::getHeapFallbacks);
+        Metrics.register("arena.leaksDetected", SHARED::getLeaksDetected);
+    }
+
+    public DirectBufferArena(long maxDirectBytes, boolean leakDetection) {
+        this.maxDirectBytes = maxDirectBytes;
+        this.leakDetection = leakDetection;
+        for (int i = 0; i < CLASS_SIZES.length; i++)
+            classes[i] = new SizeClass();
+    }
+
+
+    // ===== Methods =====
+
+    public static DirectBufferArena shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return the largest buffer size the arena pools
+     */
+    public static int maxPooledSize() {
+        return CLASS_SIZES[CLASS_SIZES.length - 1];
+    }
+
+    /**
+     * Gives the calling thread its own cache. Only worth it on a thread that releases most of the
+     * buffers it leases; the thread must call trim() periodically, which trims its cache as well.
+     */
+    public void cacheOnThisThread() {
+        if (threadCaches.get() != null)
+            return;
+        CacheSlot[] cache = new CacheSlot[CLASS_SIZES.length];
+        for (int i = 0; i < cache.length; i++)
+            cache[i] = new CacheSlot();
+        threadCaches.set(cache);
+    }
+
+    /**
+     * @return a cleared buffer with at least minCapacity bytes of capacity. Buffers larger than
+     * maxPooledSize() are plain heap buffers.
+     */
+    public ByteBuffer lease(int minCapacity) {
+        int sizeClass = classOf(minCapacity);
+        if (sizeClass < 0)
+            return ByteBuffer.allocate(minCapacity);
+
+        if (leakDetection)
+            reportCollectedLeases();
+
+        ByteBuffer buff = null;
+        CacheSlot[] cache = threadCaches.get();
+        if (cache != null)
+            buff = cache[sizeClass].poll();
+        if (buff == null)
+            buff = pollFree(sizeClass);
+        if (buff == null)
+            buff = allocate(sizeClass);
+        if (buff == null) {
+            heapFallbacks.incrementAndGet();
+            return ByteBuffer.allocate(CLASS_SIZES[sizeClass]);
+        }
+
+        buff.clear();
+        bytesInUse.addAndGet(buff.capacity());
+        if (leakDetection)
+            leases.add(new LeaseRecord(buff, collected));
+        return buff;
+    }
+
+    public void release(ByteBuffer buff) {
+        int sizeClass = classOf(buff.capacity());
+        if (!buff.isDirect() || sizeClass < 0 || buff.capacity() != CLASS_SIZES[sizeClass])
+            return; // heap fallback or oversized lease - left to the GC
+
+        if (leakDetection && !leases.remove(new LeaseRecord(buff, null)))
+            throw new IllegalStateException("buffer released twice or not leased from this arena");
+
+        bytesInUse.addAndGet(-buff.capacity());
+        CacheSlot[] cache = threadCaches.get();
+        if (cache != null && cache[sizeClass].buffers.size() * CLASS_SIZES[sizeClass] < THREAD_CACHE_BYTES) {
+            cache[sizeClass].buffers.push(buff);
+        } else {
+            classes[sizeClass].count.incrementAndGet();
+            classes[sizeClass].free.offer(buff);
+        }
+    }
+
+    /**
+     * Drops free buffers that sat unused since the previous call, in the global free lists and in
+     * the calling thread's cache. Meant to be called periodically by every thread that owns a
+     * cache, e.g. by the reactor loop.
+     */
+    public void trim() {
+        for (int i = 0; i < CLASS_SIZES.length; i++) {
+            SizeClass sizeClass = classes[i];
+            int unused = sizeClass.lowWater.get();
+            for (int n = 0; n < unused; n++) {
+                if (sizeClass.free.poll() == null)
+                    break;
+                sizeClass.count.decrementAndGet();
+                directBytes.addAndGet(-CLASS_SIZES[i]);
+            }
+            sizeClass.lowWater.set(sizeClass.count.get());
+        }
+
+        CacheSlot[] cache = threadCaches.get();
+        if (cache == null)
+            return;
+        for (int i = 0; i < CLASS_SIZES.length; i++) {
+            CacheSlot slot = cache[i];
+            for (int n = 0; n < slot.lowWater && slot.buffers.pollLast() != null; n++) // the least recently used
+                directBytes.addAndGet(-CLASS_SIZES[i]);
+            slot.lowWater = slot.buffers.size();
+        }
+    }
+
+    /**
+     * @return direct bytes owned by the arena, leased or free
+     */
+    public long getDirectBytes() {
+        return directBytes.get();
+    }
+
+    public long getBytesInUse() {
+        return bytesInUse.get();
+    }
+
+    public long getHeapFallbacks() {
+        return heapFallbacks.get();
+    }
+
+    public long getLeaksDetected() {
+        if (leakDetection)
+            reportCollectedLeases();
+        return leaksDetected.get();
+    }
+
+    private ByteBuffer pollFree(int sizeClass) {
+        SizeClass list = classes[sizeClass];
+        ByteBuffer buff = list.free.poll();
+        if (buff != null) {
+            int left = list.count.decrementAndGet();
+            list.lowWater.accumulateAndGet(left, Math::min);
+        }
+        return buff;
+    }
+
+    private ByteBuffer allocate(int sizeClass) {
+        int size = CLASS_SIZES[sizeClass];
+        if (directBytes.addAndGet(size) > maxDirectBytes) {
+            directBytes.addAndGet(-size);
+            return null;
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    private void reportCollectedLeases() {
+        LeaseRecord record;
+        while ((record = (LeaseRecord) collected.poll()) != null) {
+            if (leases.remove(record)) {
+                leaksDetected.incrementAndGet();
+                bytesInUse.addAndGet(-record.capacity);
+                directBytes.addAndGet(-record.capacity);
+                System.err.println("LEAK: a direct buffer was collected without being released");
+                record.leasedAt.printStackTrace();
+            }
+        }
+    }
+
+    private static int classOf(int capacity) {
+        for (int i = 0; i < CLASS_SIZES.length; i++) {
+            if (capacity <= CLASS_SIZES[i])
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * The global free list of one size class.
+     */
+    private static class SizeClass {
+        final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicInteger lowWater = new AtomicInteger(); // smallest count since the last trim
+    }
+
+    /**
+     * One size class of a thread's cache, only used by the owning thread.
+     */
+    private static class CacheSlot {
+        final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+        int lowWater; // smallest size since the last trim
+
+        ByteBuffer poll() {
+            ByteBuffer buff = buffers.poll();
+            lowWater = Math.min(lowWater, buffers.size());
+            return buff;
+        }
+    }
+
+    /**
+     * Tracks one outstanding lease. Records compare by the identity of the leased buffer, since
+     * ByteBuffer.equals compares content.
+     */
+    private static class LeaseRecord extends WeakReference<ByteBuffer> {
+        private final int hash;
+        private final int capacity;
+        private final Throwable leasedAt;
+
+        LeaseRecord(ByteBuffer buff, ReferenceQueue<ByteBuffer> queue) {
+            super(buff, queue);
+            this.hash = System.identityHashCode(buff);
+            this.capacity = buff.capacity();
+            this.leasedAt = queue == null ? null : new Throwable("leased here");
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof LeaseRecord))
+                return false;
+            ByteBuffer mine = get();
+            return mine != null && mine == ((LeaseRecord) o).get();
+        }
+    }
+}
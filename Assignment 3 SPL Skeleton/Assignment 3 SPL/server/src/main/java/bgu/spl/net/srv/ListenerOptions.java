@@ -0,0 +1,132 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * How the servers listen for new connections, shared by the reactor and the thread per client
+ * server:
+ *   stomp.acceptBacklog - length of the kernel's queue of connections not accepted yet
+ *   stomp.acceptBatch   - connections the reactor accepts per selector wakeup
+ *   stomp.acceptors     - threads accepting in parallel, each on its own SO_REUSEPORT socket
+ *                         where the platform supports it, otherwise all on the one socket
+ *   stomp.unixSocket     - path of a Unix domain socket to listen on as well, for clients on the
+ *                          same host, which skip the TCP/IP stack (needs Java 16)
+ *   stomp.unixSocketOnly - true to listen on the Unix domain socket only, not on the port
+ */
+final class ListenerOptions {
+
+    // ===== Fields =====
+
+    static final int BACKLOG = Integer.getInteger("stomp.acceptBacklog", 1024);
+    static final int ACCEPT_BATCH = Math.max(1, Integer.getInteger("stomp.acceptBatch", 64));
+    static final int ACCEPTORS = Math.max(1, Integer.getInteger("stomp.acceptors", 1));
+    static final String UNIX_SOCKET = System.getProperty("stomp.unixSocket");
+    static final boolean UNIX_SOCKET_ONLY = UNIX_SOCKET != null && Boolean.getBoolean("stomp.unixSocketOnly");
+
+    private static final SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+
+
+    // ===== Constructor =====
+
+    private ListenerOptions() {
+    }
+
+
+    // ===== Methods =====
+
+    /**
+     * Turns SO_REUSEPORT on for an unbound channel, so several channels may listen on one port and
+     * the kernel spreads incoming connections between them.
+     * @return false if the JVM or the platform does not support it
+     */
+    static boolean enableReusePort(NetworkChannel listener) {
+        if (SO_REUSEPORT == null)
+            return false;
+
+        try {
+            listener.setOption(SO_REUSEPORT, true);
+            return true;
+        } catch (IOException | UnsupportedOperationException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Same as above for an unbound ServerSocket, whose setOption exists since Java 9.
+     */
+    static boolean enableReusePort(ServerSocket listener) {
+        if (SO_REUSEPORT == null)
+            return false;
+
+        try {
+            Method setOption = ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class);
+            setOption.invoke(listener, SO_REUSEPORT, true);
+            return true;
+        } catch (ReflectiveOperationException ex) {
+            return false; // an UnsupportedOperationException from setOption arrives wrapped in one
+        }
+    }
+
+    /**
+     * StandardSocketOptions.SO_REUSEPORT exists since Java 9, the sources stay Java 8 compatible.
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Opens a blocking channel listening on UNIX_SOCKET, replacing the file a previous run left.
+     * UnixDomainSocketAddress and the UNIX protocol family exist since Java 16, the sources stay
+     * Java 8 compatible.
+     * @throws IOException if the JVM does not support Unix domain sockets or the path is unusable
+     */
+    static ServerSocketChannel openUnixListener() throws IOException {
+        SocketAddress address;
+        ServerSocketChannel listener;
+        try {
+            address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", String.class).invoke(null, UNIX_SOCKET);
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            listener = (ServerSocketChannel) ServerSocketChannel.class
+                    .getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        } catch (ReflectiveOperationException | IllegalArgumentException ex) {
+            throw new IOException("Unix domain sockets need Java 16 or later", ex);
+        }
+
+        try {
+            Files.deleteIfExists(Paths.get(UNIX_SOCKET)); // a stale socket file fails the bind
+            listener.bind(address, BACKLOG);
+        } catch (IOException ex) {
+            listener.close();
+            throw ex;
+        }
+        return listener;
+    }
+
+    /**
+     * Closes a listener of openUnixListener and removes its socket file, which closing leaves behind.
+     */
+    static void closeUnixListener(ServerSocketChannel listener) {
+        try {
+            listener.close();
+            Files.deleteIfExists(Paths.get(UNIX_SOCKET));
+        } catch (IOException ignored) {
+        }
+    }
+}
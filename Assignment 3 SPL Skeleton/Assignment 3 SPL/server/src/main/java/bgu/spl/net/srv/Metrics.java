@@ -0,0 +1,73 @@
+package bgu.spl.net.srv;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters and gauges of the server. Components register a supplier for each value they
+ * keep; snapshot() reads them all, and with -Dstomp.metrics.intervalSec=N a daemon thread prints
+ * them to stdout every N seconds as one "metrics name=value ..." line, sorted by name.
+ */
+public final class Metrics {
+
+    // ===== Fields =====
+
+    private static final long INTERVAL_SEC = Long.getLong("stomp.metrics.intervalSec", 0);
+
+    private static final Map<String, LongSupplier> values = new ConcurrentSkipListMap<>();
+    private static Thread reporter; // guarded by Metrics.class
+
+
+    // ===== Constructor =====
+
+    private Metrics() {
+    }
+
+
+    // ===== Methods =====
+
+    /**
+     * Registers value under name, replacing an earlier registration, and starts the reporter if
+     * stomp.metrics.intervalSec is set.
+     */
+    public static void register(String name, LongSupplier value) {
+        values.put(name, value);
+        startReporter();
+    }
+
+    /**
+     * @return every registered value, sorted by name
+     */
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        for (Map.Entry<String, LongSupplier> entry : values.entrySet())
+            snapshot.put(entry.getKey(), entry.getValue().getAsLong());
+        return snapshot;
+    }
+
+    public static String format() {
+        StringBuilder line = new StringBuilder("metrics");
+        for (Map.Entry<String, Long> entry : snapshot().entrySet())
+            line.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+        return line.toString();
+    }
+
+    private static synchronized void startReporter() {
+        if (INTERVAL_SEC <= 0 || reporter != null)
+            return;
+        reporter = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(INTERVAL_SEC * 1000);
+                    System.out.println(format());
+                }
+            } catch (InterruptedException ignored) {
+                // the server is going down
+            }
+        }, "metrics-reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+}
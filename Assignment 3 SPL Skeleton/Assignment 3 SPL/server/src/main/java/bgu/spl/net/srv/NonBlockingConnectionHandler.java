@@ -1,27 +1,51 @@
 package bgu.spl.net.srv;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
+import bgu.spl.net.api.MessageTooLargeException;
 import bgu.spl.net.api.StompMessagingProtocol;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
     // ===== Fields =====
     
     private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
-    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    private static final int SMALL_READ_SIZE = 1 << 11; // reads up to 2k are moved to a right-sized buffer
+    private static final int WRITE_BUFFER_SIZE = 1 << 13; // outbound frames are encoded into 8k arena buffers
+    private static final DirectBufferArena ARENA = DirectBufferArena.shared();
+    // reading stops once this many read tasks or input bytes wait for the pool, and resumes at half
+    private static final int BACKLOG_HIGH_TASKS = Integer.getInteger("stomp.backpressure.highTasks", 32);
+    private static final int BACKLOG_HIGH_BYTES = Integer.getInteger("stomp.backpressure.highBytes", 1 << 20);
+    // awaitWritable returns once no more than this many encoded bytes wait to be written
+    private static final int WRITABLE_BYTES = Integer.getInteger("stomp.reactor.writableBytes", 1 << 16);
 
     private final StompMessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
-    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<OutboundBuffer> writeQueue = new ArrayDeque<>(); // bulk frames, guarded by itself
+    private final ArrayDeque<OutboundBuffer> controlQueue = new ArrayDeque<>(); // priority frames, guarded by writeQueue
+    private final HashMap<Object, OutboundBuffer> conflatable = new HashMap<>(); // unsent messages by conflation key, guarded by writeQueue
+    private OutboundBuffer writing = null; // head buffer being written, guarded by writeQueue
+    private boolean writesClosed = false; // guarded by writeQueue
+    private int writeWaiters = 0; // threads in awaitWritable, guarded by writeQueue
+    private volatile long readsPausedUntil = 0; // see pauseReads
+    private final ArrayDeque<ByteBuffer> deferredInput = new ArrayDeque<>(); // read while paused, guarded by itself
+    private final AtomicInteger pendingTasks = new AtomicInteger(); // read tasks submitted and not finished
+    private final AtomicLong pendingInputBytes = new AtomicLong(); // read and not processed yet
+    private final Object backlogLock = new Object(); // serializes backlog state changes
+    private volatile boolean inputBacklogged = false;
     private final SocketChannel chan;
-    private final Reactor reactor;
+    private final Reactor<T> reactor;
+    private final TlsLayer tls; // null for plaintext connections
 
 
     // ===== Constructor =====
@@ -30,99 +54,492 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
             MessageEncoderDecoder<T> reader,
             StompMessagingProtocol<T> protocol,
             SocketChannel chan,
-            Reactor reactor) {
+            Reactor<T> reactor) {
+        this(reader, protocol, chan, reactor, null);
+    }
+
+    /*package*/ NonBlockingConnectionHandler(
+            MessageEncoderDecoder<T> reader,
+            StompMessagingProtocol<T> protocol,
+            SocketChannel chan,
+            Reactor<T> reactor,
+            TlsLayer tls) {
         this.chan = chan;
         this.encdec = reader;
         this.protocol = protocol;
         this.reactor = reactor;
+        this.tls = tls;
     }
 
 
     // ===== Methods =====
 
     public Runnable continueRead() {
-        ByteBuffer buf = leaseBuffer();
+        if (tls != null)
+            return continueTlsRead(true);
+
+        ByteBuffer readBuf = ARENA.lease(BUFFER_ALLOCATION_SIZE);
 
         boolean success = false;
         try {
-            success = chan.read(buf) != -1;
+            success = chan.read(readBuf) != -1;
         } catch (IOException ex) {
             ex.printStackTrace();
         }
 
         if (success) {
-            buf.flip();
+            readBuf.flip();
+            ByteBuffer buf = shrinkToFit(readBuf);
+            pendingTasks.incrementAndGet();
+            pendingInputBytes.addAndGet(buf.limit());
+            updateBacklog();
             return () -> {
                 try {
-                    while (buf.hasRemaining()) {
-                        T nextMessage = encdec.decodeNextByte(buf.get());
-                        if (nextMessage != null) 
-                            protocol.process(nextMessage);    
+                    synchronized (deferredInput) {
+                        if (!deferredInput.isEmpty()) {
+                            deferredInput.add(buf); // keep the order, resumeInput() gets to it
+                            return;
+                        }
                     }
+                    process(buf);
                 } finally {
-                    releaseBuffer(buf);
+                    pendingTasks.decrementAndGet();
+                    updateBacklog();
                 }
             };
         } else {
-            releaseBuffer(buf);
+            ARENA.release(readBuf);
+            close();
+            return null;
+        }
+
+    }
+
+    /**
+     * Same as continueRead for a TLS connection: the records read are decrypted here on the
+     * selector thread, and the task processes the plaintext.
+     * @param fromChannel false to only decrypt records that were read earlier
+     */
+    private Runnable continueTlsRead(boolean fromChannel) {
+        List<ByteBuffer> input = new ArrayList<>(2);
+        boolean open;
+        try {
+            open = tls.read(input::add, fromChannel);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            open = false;
+        }
+        if (!open) {
+            for (ByteBuffer buf : input)
+                ARENA.release(buf);
             close();
             return null;
         }
 
+        if (tls.needsTasks())
+            startTlsTasks();
+        reactor.updateInterestedOps(chan, this::interestedOps); // the handshake may want to write
+        if (input.isEmpty())
+            return null;
+
+        long bytes = 0;
+        for (ByteBuffer buf : input)
+            bytes += buf.limit();
+        pendingTasks.incrementAndGet();
+        pendingInputBytes.addAndGet(bytes);
+        updateBacklog();
+        return () -> {
+            try {
+                for (ByteBuffer buf : input) {
+                    synchronized (deferredInput) {
+                        if (!deferredInput.isEmpty()) {
+                            deferredInput.add(buf); // keep the order, resumeInput() gets to it
+                            continue;
+                        }
+                    }
+                    process(buf);
+                }
+            } finally {
+                pendingTasks.decrementAndGet();
+                updateBacklog();
+            }
+        };
+    }
+
+    /**
+     * Runs the handshake's delegated tasks on the pool, then carries on with the handshake on the
+     * selector thread.
+     */
+    private void startTlsTasks() {
+        tls.tasksStarted();
+        reactor.submit(this, () -> {
+            tls.runTasks();
+            reactor.schedule(() -> {
+                if (isClosed())
+                    return;
+                Runnable task = continueTlsRead(false); // records that arrived while the tasks ran
+                if (task != null)
+                    reactor.submit(this, task);
+            }, 0);
+        });
+    }
+
+    /**
+     * Decodes and processes the frames in buf. If the protocol pauses reads meanwhile, the rest
+     * of buf is set aside until resumeInput() runs.
+     */
+    private void process(ByteBuffer buf) {
+        while (buf.hasRemaining()) {
+            if (readsPaused()) {
+                synchronized (deferredInput) {
+                    if (!isClosed()) {
+                        deferredInput.addFirst(buf);
+                        return;
+                    }
+                }
+                break;
+            }
+
+            T nextMessage;
+            try {
+                nextMessage = encdec.decodeNext(buf);
+            } catch (MessageTooLargeException ex) {
+                protocol.messageTooLarge(ex);
+                continue;
+            }
+            if (nextMessage != null) 
+                protocol.process(nextMessage);    
+        }
+        pendingInputBytes.addAndGet(-buf.limit());
+        ARENA.release(buf);
+        updateBacklog();
+    }
+
+    /**
+     * Stops reading once the input waiting for the pool crosses the high watermarks, and resumes
+     * once it falls to half of them, so a client that outpaces us fills its TCP window rather
+     * than our memory.
+     */
+    private void updateBacklog() {
+        synchronized (backlogLock) {
+            int tasks = pendingTasks.get();
+            long bytes = pendingInputBytes.get();
+            if (!inputBacklogged && (tasks >= BACKLOG_HIGH_TASKS || bytes >= BACKLOG_HIGH_BYTES)) {
+                inputBacklogged = true;
+            } else if (inputBacklogged && tasks <= BACKLOG_HIGH_TASKS / 2 && bytes <= BACKLOG_HIGH_BYTES / 2) {
+                inputBacklogged = false;
+            } else {
+                return;
+            }
+        }
+        reactor.updateInterestedOps(chan, this::interestedOps);
+    }
+
+    /**
+     * Processes input set aside by a pause. Runs on the pool as an actor task of this handler, so
+     * it is ordered with the read tasks.
+     */
+    private void resumeInput() {
+        while (!readsPaused()) {
+            ByteBuffer buf;
+            synchronized (deferredInput) {
+                buf = deferredInput.poll();
+            }
+            if (buf == null)
+                return;
+            process(buf);
+        }
     }
 
     public void close() {
+        if (tls != null) {
+            if (reactor.isSelectorThread() && chan.isOpen())
+                tls.closeOutbound();
+            reactor.schedule(tls::release, 0); // the selector thread may still be using the buffers
+        }
         try {
             chan.close();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+
+        synchronized (deferredInput) {
+            for (ByteBuffer pending : deferredInput)
+                ARENA.release(pending);
+            deferredInput.clear();
+        }
+
+        boolean first;
+        synchronized (writeQueue) {
+            first = !writesClosed;
+            writesClosed = true;
+            for (OutboundBuffer pending : controlQueue)
+                ARENA.release(pending.buf);
+            for (OutboundBuffer pending : writeQueue)
+                if (pending.buf != null)
+                    ARENA.release(pending.buf);
+            controlQueue.clear();
+            writeQueue.clear();
+            conflatable.clear();
+            writing = null;
+            writeQueue.notifyAll(); // awaitWritable gives up
+        }
+        if (first)
+            reactor.submit(this, protocol::connectionClosed); // after any process task still queued
     }
 
+    @Override
     public boolean isClosed() {
         return !chan.isOpen();
     }
 
+    /**
+     * Writes pending buffers, control frames first. A buffer that was partly written is always
+     * finished before switching lanes, so frames never interleave on the wire.
+     */
     public void continueWrite() {
-        while (!writeQueue.isEmpty()) {
+        if (tls != null) {
             try {
-                ByteBuffer top = writeQueue.peek();
-                chan.write(top);
-                if (top.hasRemaining()) {
-                    return;
+                if (!tls.flush())
+                    return; // the socket is full, come back when it is writable
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                close();
+                return;
+            }
+            if (tls.hasBufferedInput() && !tls.blockedOnWrite()) {
+                // records that came in while the handshake waited for this write, e.g. the first frame
+                Runnable task = continueTlsRead(false);
+                if (task != null)
+                    reactor.submit(this, task);
+            }
+            if (tls.isHandshaking() || tls.tasksRunning()) {
+                reactor.updateInterestedOps(chan, this::interestedOps);
+                return;
+            }
+        }
+
+        while (true) {
+            OutboundBuffer top;
+            synchronized (writeQueue) {
+                if (writing == null)
+                    writing = controlQueue.isEmpty() ? writeQueue.peek() : controlQueue.peek();
+                top = writing;
+                if (top == null)
+                    break;
+                if (top.message != null) { // a conflatable message, encoded only now that it can no longer be replaced
+                    conflatable.remove(top.conflationKey);
+                    top.buf = encodeIntoNewBuffer(top.message);
+                    top.message = null;
+                }
+                top.seal(); // no more frames are appended once writing starts
+            }
+
+            boolean sent;
+            try {
+                if (tls == null) {
+                    chan.write(top.buf);
+                    sent = !top.buf.hasRemaining();
                 } else {
-                    writeQueue.remove();
+                    sent = tls.write(top.buf);
                 }
             } catch (IOException ex) {
                 ex.printStackTrace();
                 close();
+                return;
+            }
+            if (top.buf.hasRemaining()) {
+                if (tls != null)
+                    reactor.updateInterestedOps(chan, this::interestedOps); // may be waiting for a handshake
+                return;
             }
-        }
 
-        if (writeQueue.isEmpty()) {
-            if (protocol.shouldTerminate()) close();
-            else reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+            synchronized (writeQueue) {
+                if (writing != top)
+                    return; // closed meanwhile, close() released it
+                writing = null;
+                if (controlQueue.peek() == top)
+                    controlQueue.remove();
+                else
+                    writeQueue.remove();
+                if (writeWaiters > 0)
+                    writeQueue.notifyAll();
+            }
+            ARENA.release(top.buf);
+            if (!sent)
+                return; // its last records are still in the TLS layer
         }
+
+        if (protocol.shouldTerminate()) close();
+        else reactor.updateInterestedOps(chan, this::interestedOps);
     }
 
-    private static ByteBuffer leaseBuffer() {
-        ByteBuffer buff = BUFFER_POOL.poll();
-        if (buff == null) {
-            return ByteBuffer.allocateDirect(BUFFER_ALLOCATION_SIZE);
+    @Override
+    public boolean awaitWritable(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (writeQueue) {
+            writeWaiters++;
+            try {
+                long wait;
+                while (!writesClosed && queuedBytes() > WRITABLE_BYTES) {
+                    if ((wait = deadline - System.currentTimeMillis()) <= 0)
+                        return false;
+                    writeQueue.wait(wait); // continueWrite wakes us as each buffer goes out
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                writeWaiters--;
+            }
+            return !writesClosed;
         }
+    }
+
+    /**
+     * @return the encoded bytes waiting in both lanes; a conflatable message is not encoded until
+     * it is written and counts as nothing. Called with writeQueue held.
+     */
+    private long queuedBytes() {
+        long bytes = 0;
+        for (OutboundBuffer pending : controlQueue)
+            bytes += pending.size();
+        for (OutboundBuffer pending : writeQueue)
+            bytes += pending.size();
+        return bytes;
+    }
 
-        buff.clear();
-        return buff;
+    @Override
+    public void pauseReads(long millis) {
+        long until = System.currentTimeMillis() + millis;
+        if (until <= readsPausedUntil)
+            return; // already paused for longer
+
+        readsPausedUntil = until;
+        reactor.updateInterestedOps(chan, this::interestedOps);
+        reactor.schedule(() -> {
+            if (readsPaused() || isClosed())
+                return; // paused again meanwhile, a later timer resumes
+            reactor.submit(this, this::resumeInput);
+            reactor.updateInterestedOps(chan, this::interestedOps);
+        }, millis);
     }
 
-    private static void releaseBuffer(ByteBuffer buff) {
-        BUFFER_POOL.add(buff);
+    private boolean readsPaused() {
+        return System.currentTimeMillis() < readsPausedUntil;
+    }
+
+    /**
+     * @return the ops the reactor should watch: reads unless paused, writes while output is pending
+     * (or, with TLS, while the handshake has records to send)
+     */
+    private int interestedOps() {
+        int ops = readsPaused() || inputBacklogged ? 0 : SelectionKey.OP_READ;
+        if (tls != null) {
+            if (tls.blockedOnWrite())
+                ops = 0; // nothing can be decrypted before the handshake's records are out
+            if (tls.wantsWrite())
+                ops |= SelectionKey.OP_WRITE;
+            if (tls.isHandshaking() || tls.tasksRunning())
+                return ops; // application data waits for the handshake
+        }
+        synchronized (writeQueue) {
+            if (writing != null || !controlQueue.isEmpty() || !writeQueue.isEmpty())
+                ops |= SelectionKey.OP_WRITE;
+        }
+        return ops;
+    }
+
+    /**
+     * Most reads deliver a single small frame. Rather than holding a full 8k buffer until the task
+     * runs, copy such reads into a small buffer and give the big one straight back to this thread's
+     * cache, where the next read picks it up.
+     */
+    private static ByteBuffer shrinkToFit(ByteBuffer readBuf) {
+        if (readBuf.remaining() > SMALL_READ_SIZE)
+            return readBuf;
+
+        ByteBuffer small = ARENA.lease(readBuf.remaining());
+        small.put(readBuf);
+        small.flip();
+        ARENA.release(readBuf);
+        return small;
     }
 
     @Override
     public void send(T msg) {
+        synchronized (writeQueue) {
+            if (writesClosed)
+                return;
+
+            boolean priority = encdec.isPriority(msg);
+            Object key = priority ? null : encdec.conflationKey(msg);
+            if (key != null) {
+                // replaces the queued message with the same key in place, or queues as is
+                OutboundBuffer queued = conflatable.get(key);
+                if (queued != null) {
+                    queued.message = msg;
+                } else {
+                    OutboundBuffer slot = new OutboundBuffer(msg, key);
+                    conflatable.put(key, slot);
+                    writeQueue.add(slot);
+                }
+            } else {
+                // frames are encoded straight into the last pending buffer of their lane while it has room
+                ArrayDeque<OutboundBuffer> lane = priority ? controlQueue : writeQueue;
+                OutboundBuffer tail = lane.peekLast();
+                if (tail == null || tail.sealed || tail.message != null || !encdec.encodeInto(msg, tail.buf))
+                    lane.add(new OutboundBuffer(encodeIntoNewBuffer(msg)));
+            }
+        }
+        reactor.updateInterestedOps(chan, this::interestedOps);
+    }
+
+    private ByteBuffer encodeIntoNewBuffer(T msg) {
+        ByteBuffer buf = ARENA.lease(WRITE_BUFFER_SIZE);
+        if (encdec.encodeInto(msg, buf))
+            return buf;
+
+        // larger than a pooled buffer
+        ARENA.release(buf);
         byte[] bytes = encdec.encode(msg);
-        writeQueue.add(ByteBuffer.wrap(bytes));
-        reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        buf = ByteBuffer.wrap(bytes);
+        buf.position(bytes.length);
+        return buf;
+    }
+
+    /**
+     * A pending outbound buffer. It is filled by send() until continueWrite() seals it and flips it
+     * for writing. A conflatable message is kept unencoded, so a newer one can take its place,
+     * until continueWrite() gets to it.
+     */
+    private class OutboundBuffer {
+        ByteBuffer buf;
+        T message; // set while a conflatable message waits to be encoded
+        final Object conflationKey;
+        boolean sealed = false;
+
+        OutboundBuffer(ByteBuffer buf) {
+            this.buf = buf;
+            this.conflationKey = null;
+        }
+
+        OutboundBuffer(T message, Object conflationKey) {
+            this.message = message;
+            this.conflationKey = conflationKey;
+        }
+
+        void seal() {
+            if (!sealed) {
+                sealed = true;
+                buf.flip();
+            }
+        }
+
+        int size() {
+            if (buf == null)
+                return 0;
+            return sealed ? buf.remaining() : buf.position();
+        }
     }
 }
@@ -4,13 +4,20 @@ import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.StompMessagingProtocol;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
 import java.util.function.Supplier;
 
 public class Reactor<T> implements Server<T> {
@@ -18,6 +25,8 @@ public class Reactor<T> implements Server<T> {
 
     // ===== Fields =====
 
+    private static final long TRIM_INTERVAL_MS = 10_000; // how often idle pooled buffers are given back
+
     private final int port;
     private final Supplier<StompMessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> readerFactory;
@@ -26,9 +35,13 @@ public class Reactor<T> implements Server<T> {
 
     private Thread selectorThread;
     private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong((Timer t) -> t.deadline)); // selector thread only
 
     private final ConnectionsImpl<T> connections = new ConnectionsImpl<>(); // Manages all active connections
     private final AtomicInteger connectionIdCounter = new AtomicInteger(0); // Generates unique connection IDs
+    private final AtomicLong acceptedConnections = new AtomicLong(); // for connections per second figures
+    private final List<ServerSocketChannel> listeners = new CopyOnWriteArrayList<>();
+    private volatile ServerSocketChannel unixListener; // see ListenerOptions.UNIX_SOCKET
 
 
     // ===== Constructor =====
@@ -43,6 +56,7 @@ public class Reactor<T> implements Server<T> {
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.readerFactory = readerFactory;
+        Metrics.register("reactor.acceptedConnections", acceptedConnections::get);
     }
 
 
@@ -55,23 +69,50 @@ public class Reactor<T> implements Server<T> {
                 ServerSocketChannel serverSock = ServerSocketChannel.open()) {
 
             this.selector = selector; //just to be able to close
-
-            serverSock.bind(new InetSocketAddress(port));
-            serverSock.configureBlocking(false);
-            serverSock.register(selector, SelectionKey.OP_ACCEPT);
+            if (TlsOptions.enabled())
+                TlsOptions.newEngine(); // a bad key store stops the server now rather than at the first client
+
+            if (!ListenerOptions.UNIX_SOCKET_ONLY) {
+                listeners.add(serverSock);
+                boolean reusePort = ListenerOptions.ACCEPTORS > 1 && ListenerOptions.enableReusePort(serverSock);
+                serverSock.bind(new InetSocketAddress(port), ListenerOptions.BACKLOG);
+                if (ListenerOptions.ACCEPTORS == 1) {
+                    serverSock.configureBlocking(false);
+                    serverSock.register(selector, SelectionKey.OP_ACCEPT);
+                } else {
+                    startAcceptors(serverSock, reusePort);
+                }
+            }
+            if (ListenerOptions.UNIX_SOCKET != null) {
+                // local clients are accepted on the selector thread, whatever ACCEPTORS says
+                unixListener = ListenerOptions.openUnixListener();
+                unixListener.configureBlocking(false);
+                unixListener.register(selector, SelectionKey.OP_ACCEPT);
+            }
 			System.out.println("Server started");
 
+            // the selector leases every read buffer and releases every written one
+            DirectBufferArena.shared().cacheOnThisThread();
+
+            long lastTrim = System.currentTimeMillis();
             while (!Thread.currentThread().isInterrupted()) {
 
-                selector.select();
+                selector.select(selectTimeout());
                 runSelectionThreadTasks();
+                runDueTimers();
+
+                long now = System.currentTimeMillis();
+                if (now - lastTrim >= TRIM_INTERVAL_MS) {
+                    DirectBufferArena.shared().trim();
+                    lastTrim = now;
+                }
 
                 for (SelectionKey key : selector.selectedKeys()) {
 
                     if (!key.isValid()) {
                         continue;
                     } else if (key.isAcceptable()) {
-                        handleAccept(serverSock, selector);
+                        handleAccept((ServerSocketChannel) key.channel(), selector);
                     } else {
                         handleReadWrite(key);
                     }
@@ -86,6 +127,8 @@ public class Reactor<T> implements Server<T> {
         } catch (IOException ex) {
             //this is an error
             ex.printStackTrace();
+        } finally {
+            closeListeners();
         }
 
         System.out.println("server closed!!!");
@@ -93,34 +136,132 @@ public class Reactor<T> implements Server<T> {
     }
 
     /*package*/ void updateInterestedOps(SocketChannel chan, int ops) {
+        updateInterestedOps(chan, () -> ops);
+    }
+
+    /**
+     * Sets the channel's interest ops to the value ops returns on the selector thread, so state
+     * that changes in the meantime is not overwritten with a stale value.
+     */
+    /*package*/ void updateInterestedOps(SocketChannel chan, IntSupplier ops) {
         final SelectionKey key = chan.keyFor(selector);
         if (key == null)
             return; // channel may already be closed
         
         if (Thread.currentThread() == selectorThread) {
-            key.interestOps(ops);
+            key.interestOps(ops.getAsInt());
         } else {
             selectorTasks.add(() -> {
-                key.interestOps(ops);
+                if (key.isValid())
+                    key.interestOps(ops.getAsInt());
             });
             selector.wakeup();
         }
     }
 
+    /**
+     * Runs task on the pool, after every task submitted earlier for the same handler.
+     */
+    /*package*/ void submit(NonBlockingConnectionHandler<T> handler, Runnable task) {
+        pool.submit(handler, task);
+    }
+
+    /*package*/ boolean isSelectorThread() {
+        return Thread.currentThread() == selectorThread;
+    }
 
+    /**
+     * Runs task on the selector thread once delayMillis have passed.
+     */
+    /*package*/ void schedule(Runnable task, long delayMillis) {
+        Timer timer = new Timer(System.currentTimeMillis() + delayMillis, task);
+        if (Thread.currentThread() == selectorThread) {
+            timers.add(timer);
+        } else {
+            selectorTasks.add(() -> timers.add(timer));
+            selector.wakeup();
+        }
+    }
+
+
+    public long getAcceptedConnections() {
+        return acceptedConnections.get();
+    }
+
+    /**
+     * Accepts every pending connection, up to a batch per wakeup so a connection storm cannot
+     * starve reads and writes.
+     */
     private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
-        SocketChannel clientChan = serverChan.accept();
+        for (int i = 0; i < ListenerOptions.ACCEPT_BATCH; i++) {
+            SocketChannel clientChan = serverChan.accept();
+            if (clientChan == null)
+                return; // nothing left to accept
+
+            // TLS protects the network; a Unix domain socket never leaves the host
+            NonBlockingConnectionHandler<T> handler = setUpConnection(clientChan, serverChan != unixListener);
+            clientChan.register(selector, SelectionKey.OP_READ, handler);
+        }
+    }
+
+    /**
+     * Starts ACCEPTORS threads that accept with blocking calls, each on its own SO_REUSEPORT
+     * socket when possible, so connection setup runs in parallel and off the selector thread.
+     */
+    private void startAcceptors(ServerSocketChannel serverSock, boolean reusePort) throws IOException {
+        for (int i = 0; i < ListenerOptions.ACCEPTORS; i++) {
+            ServerSocketChannel listener = serverSock;
+            if (reusePort && i > 0) {
+                listener = ServerSocketChannel.open();
+                listeners.add(listener);
+                ListenerOptions.enableReusePort(listener);
+                listener.bind(new InetSocketAddress(port), ListenerOptions.BACKLOG);
+            }
+
+            ServerSocketChannel acceptFrom = listener;
+            Thread acceptor = new Thread(() -> acceptLoop(acceptFrom), "acceptor-" + i);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+    }
+
+    private void acceptLoop(ServerSocketChannel serverChan) {
+        while (serverChan.isOpen()) {
+            try {
+                SocketChannel clientChan = serverChan.accept();
+                NonBlockingConnectionHandler<T> handler = setUpConnection(clientChan, true);
+                selectorTasks.add(() -> {
+                    try {
+                        clientChan.register(selector, SelectionKey.OP_READ, handler);
+                    } catch (ClosedChannelException ex) {
+                        handler.close(); // the client left before it was registered
+                    }
+                });
+                selector.wakeup();
+            } catch (ClosedChannelException ex) {
+                return; // close() was called
+            } catch (IOException ex) {
+                ex.printStackTrace(); // e.g. out of file descriptors, keep accepting the others
+            }
+        }
+    }
+
+    /**
+     * @param tlsAllowed false to talk plain text even if TLS is enabled
+     */
+    private NonBlockingConnectionHandler<T> setUpConnection(SocketChannel clientChan, boolean tlsAllowed) throws IOException {
+        acceptedConnections.incrementAndGet();
         clientChan.configureBlocking(false);
 
         StompMessagingProtocol<T> protocol = protocolFactory.get();
         MessageEncoderDecoder<T> reader = readerFactory.get();
-        final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(reader, protocol, clientChan, this);
+        TlsLayer tls = tlsAllowed && TlsOptions.enabled() ? new TlsLayer(TlsOptions.newEngine(), clientChan) : null;
+        final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(reader, protocol, clientChan, this, tls);
         
         int connectionId = connectionIdCounter.incrementAndGet(); // Generate a unique connection ID
         connections.connect(connectionId, handler); // connect the handler
         protocol.start(connectionId, connections); // Start the protocol
-        
-        clientChan.register(selector, SelectionKey.OP_READ, handler);
+        return handler;
     }
 
     private void handleReadWrite(SelectionKey key) {
@@ -145,9 +286,47 @@ public class Reactor<T> implements Server<T> {
         }
     }
 
+    private long selectTimeout() {
+        Timer next = timers.peek();
+        if (next == null)
+            return TRIM_INTERVAL_MS;
+        // select(0) blocks forever, so wait at least a millisecond
+        return Math.max(1, Math.min(TRIM_INTERVAL_MS, next.deadline - System.currentTimeMillis()));
+    }
+
+    private void runDueTimers() {
+        long now = System.currentTimeMillis();
+        while (!timers.isEmpty() && timers.peek().deadline <= now) {
+            timers.poll().task.run();
+        }
+    }
+
     @Override
     public void close() throws IOException {
         selector.close();
+        closeListeners();
+    }
+
+    private void closeListeners() {
+        for (ServerSocketChannel listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException ignored) {
+            }
+        }
+        ServerSocketChannel unix = unixListener;
+        if (unix != null)
+            ListenerOptions.closeUnixListener(unix);
+    }
+
+    private static class Timer {
+        final long deadline;
+        final Runnable task;
+
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
     }
 
 }
@@ -0,0 +1,250 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.function.Consumer;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * The TLS records of one non-blocking connection, see TlsOptions.
+ *
+ * Reads, writes and the handshake's own records run on the selector thread. The handshake's
+ * delegated tasks (certificate and key work) are the slow part, and the handler runs them on the
+ * pool instead; while they run, the engine is neither fed nor drained. The network buffers and the
+ * buffers decrypted data is read into are leased from the arena.
+ */
+final class TlsLayer {
+
+    // ===== Fields =====
+
+    private static final DirectBufferArena ARENA = DirectBufferArena.shared();
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+    private final SocketChannel chan;
+    private final long createdAt = System.currentTimeMillis();
+    private ByteBuffer netIn; // records received and not decrypted yet, in write mode
+    private ByteBuffer netOut; // records not sent yet, in write mode
+    private volatile boolean tasksRunning = false;
+    private boolean released = false;
+
+
+    // ===== Constructor =====
+
+    TlsLayer(SSLEngine engine, SocketChannel chan) throws SSLException {
+        this.engine = engine;
+        this.chan = chan;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        this.netIn = ARENA.lease(packetSize);
+        this.netOut = ARENA.lease(packetSize);
+        engine.beginHandshake();
+    }
+
+
+    // ===== Methods =====
+
+    /**
+     * Decrypts the records that arrived, reading the channel first if fromChannel.
+     * @param out gets every buffer of decrypted data, flipped; the receiver releases it to the arena
+     * @return false once the peer closed the connection
+     */
+    boolean read(Consumer<ByteBuffer> out, boolean fromChannel) throws IOException {
+        boolean open = !fromChannel || chan.read(netIn) >= 0;
+        unwrap(out);
+        if (!open) {
+            try {
+                engine.closeInbound();
+            } catch (SSLException ex) {
+                // the peer did not send close_notify, it is gone all the same
+            }
+            return false;
+        }
+        return !engine.isInboundDone();
+    }
+
+    private void unwrap(Consumer<ByteBuffer> out) throws IOException {
+        while (!tasksRunning && netIn.position() > 0) {
+            HandshakeStatus hs = engine.getHandshakeStatus();
+            if (hs == HandshakeStatus.NEED_TASK || hs == HandshakeStatus.NEED_WRAP)
+                return; // the pool or the next write moves on from here
+
+            ByteBuffer app = ARENA.lease(engine.getSession().getApplicationBufferSize());
+            SSLEngineResult result;
+            netIn.flip();
+            try {
+                result = engine.unwrap(netIn, app);
+            } catch (SSLException ex) {
+                ARENA.release(app);
+                throw ex;
+            } finally {
+                netIn.compact();
+            }
+
+            if (app.position() > 0) {
+                app.flip();
+                out.accept(app);
+            } else {
+                ARENA.release(app);
+            }
+            handshakeProgress(result);
+
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    if (netIn.position() == netIn.capacity())
+                        netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                    return; // the rest of the record has not arrived yet
+                case CLOSED:
+                    return;
+                case BUFFER_OVERFLOW:
+                    break; // the next lease is empty
+                default:
+                    if (result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+                        return;
+            }
+        }
+    }
+
+    /**
+     * Sends pending records, and the handshake's next records if it waits for us.
+     * @return true if nothing is left to send
+     */
+    boolean flush() throws IOException {
+        while (true) {
+            if (netOut.position() > 0) {
+                netOut.flip();
+                try {
+                    chan.write(netOut);
+                } finally {
+                    netOut.compact();
+                }
+                if (netOut.position() > 0)
+                    return false;
+            }
+            if (tasksRunning || engine.getHandshakeStatus() != HandshakeStatus.NEED_WRAP)
+                return true;
+
+            SSLEngineResult result = engine.wrap(EMPTY, netOut);
+            handshakeProgress(result);
+            if (result.bytesProduced() == 0)
+                return true; // e.g. closed
+        }
+    }
+
+    /**
+     * Encrypts and sends application data from src, as far as the handshake and the socket allow.
+     * @return true if src was consumed and every record sent
+     */
+    boolean write(ByteBuffer src) throws IOException {
+        while (true) {
+            if (!flush())
+                return false;
+            if (!src.hasRemaining())
+                return true;
+            if (isHandshaking())
+                return false; // application data waits for the handshake
+
+            SSLEngineResult result = engine.wrap(src, netOut);
+            handshakeProgress(result);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                throw new SSLException("TLS connection closed");
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && netOut.position() == 0)
+                netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+        }
+    }
+
+    boolean isHandshaking() {
+        HandshakeStatus hs = engine.getHandshakeStatus();
+        return hs != HandshakeStatus.NOT_HANDSHAKING && hs != HandshakeStatus.FINISHED;
+    }
+
+    /**
+     * @return true if records wait to be written, or the handshake waits for us to write
+     */
+    boolean wantsWrite() {
+        return netOut.position() > 0 || (!tasksRunning && engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP);
+    }
+
+    /**
+     * @return true while nothing can be read before our handshake records are written
+     */
+    boolean blockedOnWrite() {
+        return tasksRunning || engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP;
+    }
+
+    /**
+     * @return true if received records wait to be decrypted
+     */
+    boolean hasBufferedInput() {
+        return netIn.position() > 0;
+    }
+
+    boolean needsTasks() {
+        return !tasksRunning && engine.getHandshakeStatus() == HandshakeStatus.NEED_TASK;
+    }
+
+    boolean tasksRunning() {
+        return tasksRunning;
+    }
+
+    /**
+     * Marks the delegated tasks as taken, before they are handed to another thread.
+     */
+    void tasksStarted() {
+        tasksRunning = true;
+    }
+
+    /**
+     * Runs the handshake's delegated tasks. Called off the selector thread.
+     */
+    void runTasks() {
+        try {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null)
+                task.run();
+        } finally {
+            tasksRunning = false;
+        }
+    }
+
+    /**
+     * Queues close_notify and tries once to send it, without waiting for the socket.
+     */
+    void closeOutbound() {
+        engine.closeOutbound();
+        try {
+            flush();
+        } catch (IOException ex) {
+            // best effort, the connection is being closed anyway
+        }
+    }
+
+    /**
+     * Gives the buffers back. Called on the selector thread once the channel is closed.
+     */
+    void release() {
+        if (released)
+            return;
+        released = true;
+        ARENA.release(netIn);
+        ARENA.release(netOut);
+    }
+
+    private void handshakeProgress(SSLEngineResult result) {
+        if (result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+            // a resumed session was created by an earlier connection
+            TlsOptions.handshakeFinished(engine.getSession().getCreationTime() < createdAt);
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buf, int minCapacity) {
+        ByteBuffer bigger = ARENA.lease(Math.max(minCapacity, buf.capacity() * 2));
+        buf.flip();
+        bigger.put(buf);
+        ARENA.release(buf);
+        return bigger;
+    }
+}
@@ -0,0 +1,112 @@
+package bgu.spl.net.srv;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * TLS for the reactor, off unless a key store is configured:
+ *   stomp.tls.keyStore           - path of the server's key store
+ *   stomp.tls.keyStorePassword   - its password, also used for the key
+ *   stomp.tls.keyStoreType       - PKCS12 (default) or JKS
+ *   stomp.tls.protocols          - comma separated, e.g. TLSv1.3,TLSv1.2; the JVM's defaults if unset
+ *   stomp.tls.sessionCacheSize   - sessions kept for resumption (default 20000)
+ *   stomp.tls.sessionTimeoutSec  - how long a session may be resumed (default 86400)
+ *
+ * Resumed sessions skip the certificate exchange and key agreement, so a storm of reconnecting
+ * clients costs a fraction of full handshakes.
+ *
+ * A self-signed key store for local testing:
+ *   keytool -genkeypair -alias stomp -keyalg RSA -keysize 2048 -validity 365 \
+ *           -dname CN=localhost -storetype PKCS12 -keystore stomp.p12 -storepass changeit
+ * and the certificate for clients to trust:
+ *   keytool -exportcert -rfc -alias stomp -keystore stomp.p12 -storepass changeit -file stomp.pem
+ */
+final class TlsOptions {
+
+    // ===== Fields =====
+
+    private static final String KEY_STORE = System.getProperty("stomp.tls.keyStore");
+    private static final String KEY_STORE_PASSWORD = System.getProperty("stomp.tls.keyStorePassword", "");
+    private static final String KEY_STORE_TYPE = System.getProperty("stomp.tls.keyStoreType", "PKCS12");
+    private static final String PROTOCOLS = System.getProperty("stomp.tls.protocols");
+    private static final int SESSION_CACHE_SIZE = Integer.getInteger("stomp.tls.sessionCacheSize", 20000);
+    private static final int SESSION_TIMEOUT_SEC = Integer.getInteger("stomp.tls.sessionTimeoutSec", 86400);
+
+    private static volatile SSLContext context = null;
+
+    private static final AtomicLong fullHandshakes = new AtomicLong();
+    private static final AtomicLong resumedHandshakes = new AtomicLong();
+
+
+    // ===== Constructor =====
+
+    private TlsOptions() {
+    }
+
+
+    // ===== Methods =====
+
+    static boolean enabled() {
+        return KEY_STORE != null;
+    }
+
+    /**
+     * @return a server side engine of the configured context
+     * @throws IOException if the key store cannot be loaded
+     */
+    static SSLEngine newEngine() throws IOException {
+        SSLEngine engine = context().createSSLEngine();
+        engine.setUseClientMode(false);
+        if (PROTOCOLS != null)
+            engine.setEnabledProtocols(PROTOCOLS.split("\\s*,\\s*"));
+        return engine;
+    }
+
+    private static SSLContext context() throws IOException {
+        SSLContext ctx = context;
+        if (ctx != null)
+            return ctx;
+
+        synchronized (TlsOptions.class) {
+            if (context == null) {
+                try (InputStream in = new FileInputStream(KEY_STORE)) {
+                    char[] password = KEY_STORE_PASSWORD.toCharArray();
+                    KeyStore keyStore = KeyStore.getInstance(KEY_STORE_TYPE);
+                    keyStore.load(in, password);
+                    KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                    kmf.init(keyStore, password);
+
+                    ctx = SSLContext.getInstance("TLS");
+                    ctx.init(kmf.getKeyManagers(), null, null);
+                    SSLSessionContext sessions = ctx.getServerSessionContext();
+                    sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+                    sessions.setSessionTimeout(SESSION_TIMEOUT_SEC);
+                    context = ctx;
+                } catch (GeneralSecurityException ex) {
+                    throw new IOException("cannot load TLS key store " + KEY_STORE, ex);
+                }
+            }
+            return context;
+        }
+    }
+
+    static void handshakeFinished(boolean resumed) {
+        (resumed ? resumedHandshakes : fullHandshakes).incrementAndGet();
+    }
+
+    static long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    static long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+}
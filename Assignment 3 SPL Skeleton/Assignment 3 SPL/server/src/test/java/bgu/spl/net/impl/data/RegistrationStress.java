@@ -0,0 +1,70 @@
+package bgu.spl.net.impl.data;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registers distinct users from 1, 2, 4, ... threads at once and prints the registrations per
+ * second of each round, to show that registering scales with the threads instead of queueing
+ * behind one lock. Every user logs out again, and the next round uses new names.
+ *
+ * Run with
+ *     java -cp target/classes:target/test-classes bgu.spl.net.impl.data.RegistrationStress [users] [maxThreads]
+ * The audit writes go to the SQL server if it runs; without it the breaker opens after a few
+ * failures and they fail fast, so the numbers are those of the in-memory registry. Either way a
+ * full audit queue makes registrations wait for the one audit writer; raise stomp.db.auditQueue
+ * to keep it out of the measurement. Gains stop at the cores the machine has.
+ */
+public class RegistrationStress {
+
+	public static void main(String[] args) throws InterruptedException {
+		int users = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		Database database = Database.getInstance();
+		AtomicInteger rounds = new AtomicInteger();
+
+		for (int pass = 0; pass < 2; pass++) { // the first pass warms the JIT up
+			System.out.println(pass == 0 ? "warm-up" : "measured");
+			for (int threads = 1; threads <= maxThreads; threads *= 2)
+				run(database, rounds.incrementAndGet(), users, threads);
+		}
+		database.close();
+	}
+
+	private static void run(Database database, int round, int users, int threads) throws InterruptedException {
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(threads);
+		AtomicInteger failures = new AtomicInteger();
+		int perThread = users / threads;
+
+		for (int t = 0; t < threads; t++) {
+			int first = t * perThread;
+			new Thread(() -> {
+				try {
+					start.await();
+					for (int i = first; i < first + perThread; i++) {
+						int connectionId = round * users + i;
+						String name = "u" + round + "_" + i;
+						if (database.login(connectionId, name, "pw") != LoginStatus.ADDED_NEW_USER)
+							failures.incrementAndGet();
+						database.logout(connectionId);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					done.countDown();
+				}
+			}, "register-" + t).start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - begin;
+
+		if (failures.get() > 0)
+			throw new IllegalStateException(failures.get() + " registrations did not add a new user");
+		int registered = perThread * threads;
+		System.out.printf("%2d threads %10.0f registrations/s%n", threads, registered * 1e9 / elapsed);
+	}
+}
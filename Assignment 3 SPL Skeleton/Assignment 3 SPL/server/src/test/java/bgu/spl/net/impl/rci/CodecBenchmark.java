@@ -0,0 +1,97 @@
+package bgu.spl.net.impl.rci;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures a round trip of a small command through ObjectEncoderDecoder: encodeInto a buffer, then
+ * decodeNext it back. The same command is run registered with a FieldSerializer and unregistered,
+ * which takes the Java serialization path every command took before the binary codec.
+ *
+ * Prints the time, the bytes on the wire and the bytes allocated per round trip. Run with
+ *     java -cp target/classes:target/test-classes bgu.spl.net.impl.rci.CodecBenchmark [iterations]
+ * Allocation is read from com.sun.management.ThreadMXBean, so it needs a HotSpot based JVM.
+ */
+public class CodecBenchmark {
+
+    /**
+     * A typical small command: a couple of ints and a short string.
+     */
+    static class AddScore implements Command<Object> {
+        private static final long serialVersionUID = 1L;
+
+        final String game;
+        final int team;
+        final int points;
+
+        AddScore(String game, int team, int points) {
+            this.game = game;
+            this.team = team;
+            this.points = points;
+        }
+
+        @Override
+        public Serializable execute(Object arg) {
+            return points;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        TypeRegistry registered = new TypeRegistry();
+        registered.register(TypeRegistry.FIRST_USER_ID, AddScore.class, new FieldSerializer<AddScore>() {
+            @Override
+            public void write(AddScore value, DataOutput out) throws IOException {
+                out.writeUTF(value.game);
+                out.writeInt(value.team);
+                out.writeInt(value.points);
+            }
+
+            @Override
+            public AddScore read(DataInput in) throws IOException {
+                return new AddScore(in.readUTF(), in.readInt(), in.readInt());
+            }
+        });
+
+        for (int round = 0; round < 3; round++) { // the first rounds warm the JIT up
+            run("registered", registered, iterations);
+            run("java serialization", new TypeRegistry(), iterations / 10);
+        }
+    }
+
+    private static void run(String name, TypeRegistry registry, int iterations) {
+        ObjectEncoderDecoder encoder = new ObjectEncoderDecoder(registry);
+        ObjectEncoderDecoder decoder = new ObjectEncoderDecoder(registry);
+        ByteBuffer wire = ByteBuffer.allocate(1 << 12);
+        AddScore command = new AddScore("germany_spain", 1, 3);
+
+        long checksum = 0;
+        int wireBytes = 0;
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            wire.clear();
+            encoder.encodeInto(command, wire);
+            wireBytes = wire.position();
+            wire.flip();
+            checksum += ((AddScore) decoder.decodeNext(wire)).points;
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        if (checksum != 3L * iterations)
+            throw new IllegalStateException("decoded the wrong command");
+        System.out.printf("%-20s %8.0f ns/op %6d bytes on the wire %8.0f bytes allocated/op%n",
+                name, (double) elapsed / iterations, wireBytes, (double) allocated / iterations);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,95 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opens connections to a running broker from several threads at once and prints the connections
+ * per second it handled. Every connection sends one frame the broker rejects with an ERROR and
+ * waits for the broker to close it, so a connection counts once the broker accepted it, ran its
+ * protocol and let it go; neither a login nor the SQL server is involved.
+ *
+ * Start a broker, e.g. with -Dstomp.acceptors=4 -Dstomp.acceptBacklog=4096, and run
+ *     java -cp target/test-classes bgu.spl.net.impl.stomp.AcceptBenchmark [connections] [threads] [rounds] [port]
+ * The broker's reactor.acceptedConnections or tpc.acceptedConnections metric counts the same
+ * connections from its side.
+ */
+public class AcceptBenchmark {
+
+    private static final byte[] REJECTED_FRAME = "BENCH\n\n\0".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws InterruptedException {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3; // the first rounds warm the JIT up
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 7777;
+
+        for (int round = 0; round < rounds; round++)
+            run(round, connections, threads, port);
+    }
+
+    private static void run(int round, int connections, int threads, int port) throws InterruptedException {
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong slowestNanos = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    while (next.getAndIncrement() < connections) {
+                        long begin = System.nanoTime();
+                        if (!connectOnce(port))
+                            failed.incrementAndGet();
+                        long took = System.nanoTime() - begin;
+                        long slowest;
+                        do {
+                            slowest = slowestNanos.get();
+                        } while (took > slowest && !slowestNanos.compareAndSet(slowest, took));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }, "bench-connect-" + t).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+
+        System.out.printf("round %d: %d connections in %6.3f s, %8.0f connections/s, slowest %5.1f ms, %d failed%n",
+                round, connections, elapsed / 1e9, connections * 1e9 / elapsed, slowestNanos.get() / 1e6, failed.get());
+    }
+
+    /**
+     * @return true if the broker answered the frame and closed the connection
+     */
+    private static boolean connectOnce(int port) {
+        try (Socket socket = new Socket()) {
+            socket.setSoLinger(true, 0); // no TIME_WAIT pile up on the client ports
+            socket.connect(new InetSocketAddress("127.0.0.1", port));
+            socket.setSoTimeout(10_000);
+            socket.getOutputStream().write(REJECTED_FRAME);
+            InputStream in = socket.getInputStream();
+            byte[] sink = new byte[512];
+            int total = 0;
+            int n;
+            while ((n = in.read(sink)) >= 0)
+                total += n;
+            return total > 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
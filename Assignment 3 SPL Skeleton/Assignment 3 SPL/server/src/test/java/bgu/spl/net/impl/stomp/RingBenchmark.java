@@ -0,0 +1,115 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures how fast events published by a local feed reach a subscriber, once written to the
+ * ingestion ring and once sent as SEND frames over a client connection. A subscriber connection
+ * reads every MESSAGE and checks its body, so both paths are timed up to the same point.
+ *
+ * Start a broker with an ingestion ring, e.g.
+ *     java -Dstomp.ring.file=/dev/shm/stomp.ring -cp target/classes bgu.spl.net.impl.stomp.StompServer 7777 reactor
+ * and run
+ *     java -cp target/classes:target/test-classes bgu.spl.net.impl.stomp.RingBenchmark ring|tcp [frames] [rounds] [ringFile] [port]
+ * The broker checks logins with the SQL server, so that has to run too.
+ */
+public class RingBenchmark {
+
+    private static final String DESTINATION = "/bench";
+
+    public static void main(String[] args) throws Exception {
+        boolean ring = args.length > 0 && args[0].equals("ring");
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3; // the first rounds warm the JIT up
+        String ringFile = args.length > 3 ? args[3] : "/dev/shm/stomp.ring";
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : 7777;
+
+        Socket subscriber = connect(port, "bench-sub");
+        InputStream in = new BufferedInputStream(subscriber.getInputStream(), 1 << 16);
+        subscriber.getOutputStream().write(
+                ("SUBSCRIBE\ndestination:" + DESTINATION + "\nid:1\nreceipt:1\n\n\0").getBytes(StandardCharsets.UTF_8));
+        readFrame(in); // the RECEIPT: from here on every send reaches us
+
+        RingProducer producer = ring ? RingProducer.open(ringFile) : null;
+        Socket publisher = ring ? null : connect(port, "bench-pub");
+        OutputStream out = ring ? null : new BufferedOutputStream(publisher.getOutputStream(), 1 << 16);
+
+        for (int round = 0; round < rounds; round++) {
+            Thread feed = new Thread(() -> {
+                try {
+                    for (int i = 0; i < frames; i++) {
+                        if (producer != null) {
+                            producer.send(DESTINATION, body(i));
+                        } else {
+                            out.write(("SEND\ndestination:" + DESTINATION + "\n\n" + body(i) + "\0")
+                                    .getBytes(StandardCharsets.UTF_8));
+                        }
+                    }
+                    if (out != null)
+                        out.flush();
+                } catch (IOException | InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }, "bench-feed");
+
+            long start = System.nanoTime();
+            feed.start();
+            for (int i = 0; i < frames; i++) {
+                String message = readFrame(in);
+                if (!message.endsWith("\n\n" + body(i)))
+                    throw new IllegalStateException("message " + i + " is out of order or damaged: " + message);
+            }
+            long elapsed = System.nanoTime() - start;
+            feed.join();
+
+            System.out.printf("%-4s round %d: %d frames in %6.3f s, %9.0f frames/s%n",
+                    ring ? "ring" : "tcp", round, frames, elapsed / 1e9, frames * 1e9 / elapsed);
+        }
+
+        if (producer != null)
+            producer.close();
+        if (publisher != null)
+            publisher.close();
+        subscriber.close();
+    }
+
+    /**
+     * Bodies of varying length, so records do not all line up the same way in the ring.
+     */
+    private static String body(int i) {
+        StringBuilder sb = new StringBuilder("event ").append(i).append(' ');
+        for (int j = 0; j < i % 97; j++)
+            sb.append('x');
+        return sb.toString();
+    }
+
+    private static Socket connect(int port, String login) throws IOException {
+        Socket socket = new Socket("127.0.0.1", port);
+        socket.setTcpNoDelay(true);
+        socket.getOutputStream().write(("CONNECT\naccept-version:1.2\nhost:bench\nlogin:" + login
+                + "\npasscode:pw\n\n\0").getBytes(StandardCharsets.UTF_8));
+        String reply = readFrame(socket.getInputStream());
+        if (!reply.startsWith("CONNECTED"))
+            throw new IOException("login failed: " + reply);
+        return socket;
+    }
+
+    private static String readFrame(InputStream in) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != 0) {
+            if (b < 0)
+                throw new EOFException("the broker closed the connection");
+            frame.write(b);
+        }
+        return new String(frame.toByteArray(), StandardCharsets.UTF_8);
+    }
+}